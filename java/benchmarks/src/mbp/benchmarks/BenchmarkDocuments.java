@@ -0,0 +1,148 @@
+package mbp.benchmarks;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Product and Company documents shaped like the ones in the database, at a few sizes. Content is generated from a
+ * fixed seed, so every run and every fork benchmarks the same documents.
+ */
+public final class BenchmarkDocuments {
+
+    public enum Size {
+        /**
+         * A product with a short description and a handful of groups, like most imported products
+         */
+        SMALL(2, 200, 3, 4),
+        /**
+         * A product with an html description, properties and matching products
+         */
+        MEDIUM(8, 2000, 12, 20),
+        /**
+         * A large catalogue item with long html and many properties and dealers
+         */
+        LARGE(24, 20000, 40, 120);
+
+        private final int groups;
+        private final int descriptionLength;
+        private final int properties;
+        private final int dealers;
+
+        Size(int groups, int descriptionLength, int properties, int dealers){
+            this.groups = groups;
+            this.descriptionLength = descriptionLength;
+            this.properties = properties;
+            this.dealers = dealers;
+        }
+    }
+
+    private static final String[] WORDS = {"eiken", "tafel", "stoel", "massief", "hout", "zwart", "staal", "bank",
+            "kast", "design", "modern", "landelijk", "leer", "stof", "grijs", "wit", "poten", "verstelbaar",
+            "<p>", "</p>", "<strong>", "</strong>", "<br/>", "afmetingen", "cm", "110", "75,5"};
+
+    private BenchmarkDocuments(){
+    }
+
+    public static Document product(Size size, int seed){
+        Random random = new Random(seed);
+        ObjectId supplier = new ObjectId(new Date(1475280000000L), seed % 64);
+        Document document = new Document("_id", new ObjectId(new Date(1475280000000L + seed * 1000L), seed))
+                .append("id", "P" + (100000 + seed))
+                .append("supid", "SUP-" + seed)
+                .append("supplier", supplier)
+                .append("name", "product_" + seed)
+                .append("title", text(random, 6))
+                .append("description", text(random, size.descriptionLength / 6))
+                .append("price", 99.95 + random.nextInt(2000))
+                .append("discountPrice", random.nextInt(1500))
+                .append("stock", random.nextInt(40))
+                .append("deliveryTime", (long) random.nextInt(12))
+                .append("visible", random.nextBoolean())
+                .append("mainGroup", strings(random, size.groups / 2 + 1))
+                .append("group", strings(random, size.groups))
+                .append("environment", strings(random, 2))
+                .append("design", strings(random, 2))
+                .append("materialtype", strings(random, 3))
+                .append("colortype", strings(random, 3))
+                .append("images", images(random, size.groups))
+                .append("dealers", objectIds(random, size.dealers))
+                .append("matchingProducts", objectIds(random, size.properties / 2))
+                .append("creationDate", new Date(1475280000000L))
+                .append("updateDate", new Date(1475280000000L + seed * 60000L));
+        List<Document> properties = new ArrayList<>(size.properties);
+        for(int i = 0; i < size.properties; i++){
+            properties.add(new Document("name", WORDS[random.nextInt(WORDS.length)] + i)
+                    .append("value", text(random, 3))
+                    .append("unit", "cm")
+                    .append("sort", i));
+        }
+        document.append("properties", properties);
+        return document;
+    }
+
+    public static List<Document> products(Size size, int count){
+        List<Document> documents = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) documents.add(product(size, i));
+        return documents;
+    }
+
+    public static Document company(Size size, int seed){
+        Random random = new Random(seed);
+        return new Document("_id", new ObjectId(new Date(1475280000000L), seed))
+                .append("name", "Meubelzaak " + seed)
+                .append("oType", seed % 2)
+                .append("email", "info@meubelzaak" + seed + ".nl")
+                .append("website", "https://www.meubelzaak" + seed + ".nl")
+                .append("description", text(random, size.descriptionLength / 12))
+                .append("address", new Document("street", "Industrieweg " + seed)
+                        .append("zipcode", "1234 AB")
+                        .append("city", "Utrecht")
+                        .append("country", "NL"))
+                .append("dealers", objectIds(random, size.dealers))
+                .append("brands", strings(random, size.groups))
+                .append("creationDate", new Date(1475280000000L))
+                .append("updateDate", new Date(1475280000000L + seed * 60000L));
+    }
+
+    public static List<Document> companies(Size size, int count){
+        List<Document> documents = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) documents.add(company(size, i));
+        return documents;
+    }
+
+    /**
+     * A description without links, of roughly the given number of words
+     */
+    public static String text(Random random, int words){
+        StringBuilder builder = new StringBuilder(words * 7);
+        for(int i = 0; i < words; i++){
+            if(i > 0) builder.append(' ');
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+    private static List<String> strings(Random random, int count){
+        List<String> list = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) list.add(WORDS[random.nextInt(WORDS.length)]);
+        return list;
+    }
+
+    private static List<String> images(Random random, int count){
+        List<String> list = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) list.add("/images/products/" + Integer.toHexString(random.nextInt()) + ".jpg");
+        return list;
+    }
+
+    private static List<ObjectId> objectIds(Random random, int count){
+        List<ObjectId> list = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) list.add(new ObjectId(new Date(1475280000000L), random.nextInt(1 << 24)));
+        return list;
+    }
+
+}
@@ -0,0 +1,26 @@
+package mbp.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks in this package with the gc profiler, which adds the allocation rate (gc.alloc.rate.norm is
+ * bytes per operation) to the throughput of each benchmark.
+ * <p>
+ * The benchmarks compile against the main sources (java/src) and need jmh-core and jmh-generator-annprocess on the
+ * classpath, with the annotation processor enabled. Pass a regular expression to run a subset, for example
+ * "DatabaseResult" or "ModelAccessor.getIntegerValue".
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + "." + (args.length > 0 ? ".*" + args[0] + ".*" : ".*"))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
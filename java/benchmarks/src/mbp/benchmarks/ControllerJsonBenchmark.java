@@ -0,0 +1,95 @@
+package mbp.benchmarks;
+
+import mbp.common.controllers.CompanyController;
+import mbp.common.controllers.ProductController;
+import mbp.common.model.Company;
+import mbp.common.model.Product;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller.toJson for a page of models, as the frontend serializes them for every product list, and writeJson
+ * streaming the same page to a writer which discards the output
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ControllerJsonBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public BenchmarkDocuments.Size size;
+
+    @Param({"50", "500"})
+    public int rows;
+
+    private ProductController productController;
+    private CompanyController companyController;
+    private List<Product> products;
+    private List<Company> companies;
+
+    @Setup
+    public void setup(){
+        productController = new ProductController();
+        companyController = new CompanyController();
+        products = new ArrayList<>(rows);
+        for(Document document : BenchmarkDocuments.products(size, rows)){
+            Product product = new Product();
+            product.setDocument(document);
+            products.add(product);
+        }
+        companies = new ArrayList<>(rows);
+        for(Document document : BenchmarkDocuments.companies(size, rows)){
+            Company company = new Company();
+            company.setDocument(document);
+            companies.add(company);
+        }
+    }
+
+    @Benchmark
+    public String productsToJson(){
+        return productController.toJson(products);
+    }
+
+    @Benchmark
+    public String companiesToJson(){
+        return companyController.toJson(companies);
+    }
+
+    @Benchmark
+    public boolean productsWriteJson(){
+        return productController.writeJson(products, DISCARD);
+    }
+
+    private static final Writer DISCARD = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+}
@@ -0,0 +1,81 @@
+package mbp.benchmarks;
+
+import mbp.common.db.DatabaseResult;
+import mbp.common.model.Company;
+import mbp.common.model.Product;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterating a DatabaseResult over an in-memory collection, which measures creating a model per row on top of
+ * reading the cursor. iterateDocuments reads the same rows without models as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DatabaseResultBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public BenchmarkDocuments.Size size;
+
+    @Param({"1000"})
+    public int rows;
+
+    private List<Document> products;
+    private List<Document> companies;
+
+    @Setup
+    public void setup(){
+        products = BenchmarkDocuments.products(size, rows);
+        companies = BenchmarkDocuments.companies(size, rows);
+    }
+
+    @Benchmark
+    public void iterateDocuments(Blackhole blackhole){
+        for(Document document : InMemoryFindIterable.of(products)){
+            blackhole.consume(document);
+        }
+    }
+
+    @Benchmark
+    public void iterateProducts(Blackhole blackhole){
+        for(Product product : new DatabaseResult<>(Product.class, InMemoryFindIterable.of(products))){
+            blackhole.consume(product);
+        }
+    }
+
+    @Benchmark
+    public void forEachProducts(Blackhole blackhole){
+        new DatabaseResult<>(Product.class, InMemoryFindIterable.of(products)).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public long streamProducts(){
+        return new DatabaseResult<>(Product.class, InMemoryFindIterable.of(products)).stream().filter(p -> p != null).count();
+    }
+
+    @Benchmark
+    public void iterateCompanies(Blackhole blackhole){
+        for(Company company : new DatabaseResult<>(Company.class, InMemoryFindIterable.of(companies))){
+            blackhole.consume(company);
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package mbp.benchmarks;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Stand-in for the FindIterable of a collection, serving documents from a list so DatabaseResult iteration can be
+ * benchmarked without a server. Only the calls DatabaseResult makes are supported: iterator, first, into, skip and
+ * limit; sort, projection and the other builder calls are accepted and ignored.
+ * <p>
+ * The driver decodes a new document for every row, so by default each row is handed out as a fresh (shallow) copy.
+ */
+public final class InMemoryFindIterable implements InvocationHandler {
+
+    private final List<Document> documents;
+    private final boolean copy;
+    private final FindIterable<Document> proxy;
+    private int skip = 0;
+    private int limit = 0;
+
+    private InMemoryFindIterable(List<Document> documents, boolean copy){
+        this.documents = documents;
+        this.copy = copy;
+        this.proxy = (FindIterable<Document>) Proxy.newProxyInstance(FindIterable.class.getClassLoader(), new Class[]{FindIterable.class}, this);
+    }
+
+    public static FindIterable<Document> of(List<Document> documents){
+        return of(documents, true);
+    }
+
+    /**
+     * @param documents The rows to serve
+     * @param copy      Whether every row is copied when it is read, as the driver would decode a new document
+     */
+    public static FindIterable<Document> of(List<Document> documents, boolean copy){
+        return new InMemoryFindIterable(documents, copy).proxy;
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        switch (method.getName()){
+            case "iterator":
+                return cursor();
+            case "first":
+                MongoCursor<Document> cursor = cursor();
+                return cursor.hasNext() ? cursor.next() : null;
+            case "into":
+                Collection<Document> into = (Collection<Document>) args[0];
+                MongoCursor<Document> all = cursor();
+                while(all.hasNext()) into.add(all.next());
+                return into;
+            case "skip":
+                skip = (Integer) args[0];
+                return proxy;
+            case "limit":
+                limit = (Integer) args[0];
+                return proxy;
+            case "hashCode":
+                return System.identityHashCode(target);
+            case "equals":
+                return target == args[0];
+            case "toString":
+                return "InMemoryFindIterable(" + documents.size() + " documents)";
+        }
+        if(method.getReturnType().isInstance(proxy)) return proxy;
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    private MongoCursor<Document> cursor(){
+        int end = limit != 0 ? Math.min(documents.size(), skip + Math.abs(limit)) : documents.size();
+        Cursor cursor = new Cursor(Math.min(skip, end), end);
+        return (MongoCursor<Document>) Proxy.newProxyInstance(MongoCursor.class.getClassLoader(), new Class[]{MongoCursor.class}, cursor);
+    }
+
+    private class Cursor implements InvocationHandler {
+
+        private int index;
+        private final int end;
+
+        private Cursor(int index, int end){
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            switch (method.getName()){
+                case "hasNext":
+                    return index < end;
+                case "next":
+                    if(index >= end) throw new NoSuchElementException();
+                    return read(index++);
+                case "tryNext":
+                    return index < end ? read(index++) : null;
+                case "close":
+                    index = end;
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(target);
+                case "equals":
+                    return target == args[0];
+                case "toString":
+                    return "InMemoryCursor(" + index + "/" + end + ")";
+            }
+            if(method.getReturnType() == void.class) return null;
+            if(!method.getReturnType().isPrimitive()) return null;
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        private Document read(int i){
+            Document document = documents.get(i);
+            return copy ? new Document(document) : document;
+        }
+
+    }
+
+}
@@ -0,0 +1,78 @@
+package mbp.benchmarks;
+
+import mbp.common.model.Product;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed getters of Model. Each getter is measured on a field of its own type, and on a field of another numeric type,
+ * which is the path that falls back through the caught ClassCastException.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelAccessorBenchmark {
+
+    private Product product;
+
+    @Setup
+    public void setup(){
+        product = new Product();
+        // stock and discountPrice are Integer, price is Double, deliveryTime is Long
+        product.setDocument(BenchmarkDocuments.product(BenchmarkDocuments.Size.MEDIUM, 1));
+    }
+
+    @Benchmark
+    public Integer getIntegerValue(){
+        return product.getIntegerValue("stock");
+    }
+
+    @Benchmark
+    public Integer getIntegerValueFromDouble(){
+        return product.getIntegerValue("price");
+    }
+
+    @Benchmark
+    public Integer getIntegerValueMissing(){
+        return product.getIntegerValue("missing");
+    }
+
+    @Benchmark
+    public Long getLongValue(){
+        return product.getLongValue("deliveryTime");
+    }
+
+    @Benchmark
+    public Long getLongValueFromInteger(){
+        return product.getLongValue("stock");
+    }
+
+    @Benchmark
+    public Double getDoubleValue(){
+        return product.getDoubleValue("price");
+    }
+
+    @Benchmark
+    public Double getDoubleValueFromInteger(){
+        return product.getDoubleValue("discountPrice");
+    }
+
+    @Benchmark
+    public String getStringValue(){
+        return product.getStringValue("title");
+    }
+
+}
@@ -0,0 +1,68 @@
+package mbp.benchmarks;
+
+import mbp.common.model.Product;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Model.setStringValue, which checks every written string for links. Measured for descriptions of each product size,
+ * with and without a link in the text, and for a field which is not checked.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SetStringValueBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public BenchmarkDocuments.Size size;
+
+    @Param({"false", "true"})
+    public boolean withLink;
+
+    private Product product;
+    private String description;
+
+    @Setup
+    public void setup(){
+        product = new Product();
+        product.setDocument(BenchmarkDocuments.product(size, 1));
+        Random random = new Random(1);
+        String text = BenchmarkDocuments.product(size, 1).getString("description");
+        if(withLink){
+            int middle = text.length() / 2;
+            text = text.substring(0, middle) + " bekijk ook www.andere-winkel.nl/aanbieding?id=12 " + text.substring(middle);
+        }
+        description = text + " " + BenchmarkDocuments.text(random, 2);
+    }
+
+    @Benchmark
+    public boolean setStringValue(){
+        return product.setStringValue("description", description);
+    }
+
+    @Benchmark
+    public boolean setStringValueUnchecked(){
+        return product.setStringValue("description", description, false);
+    }
+
+    @Benchmark
+    public boolean setStringValueShort(){
+        return product.setStringValue("title", "Eiken tafel 180 cm");
+    }
+
+}
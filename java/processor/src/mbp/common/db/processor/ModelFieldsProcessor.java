@@ -0,0 +1,226 @@
+package mbp.common.db.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the typed accessor classes for models annotated with mbp.common.db.ModelFields. The annotations are
+ * read by name, so this processor does not depend on the main sources and can be compiled before them.
+ */
+@SupportedAnnotationTypes(ModelFieldsProcessor.MODEL_FIELDS)
+public class ModelFieldsProcessor extends AbstractProcessor {
+
+    static final String MODEL_FIELDS = "mbp.common.db.ModelFields";
+    private static final String MODEL = "mbp.common.db.Model";
+
+    /**
+     * Supported field types, by qualified name: the value type, the Model getter and the Model setter
+     */
+    private static final Map<String, String[]> TYPES = new LinkedHashMap<>();
+
+    static {
+        TYPES.put("java.lang.String", new String[]{"String", "getStringValue", "setStringValue"});
+        TYPES.put("java.lang.Integer", new String[]{"Integer", "getIntegerValue", "setIntegerValue"});
+        TYPES.put("java.lang.Long", new String[]{"Long", "getLongValue", "setLongValue"});
+        TYPES.put("java.lang.Double", new String[]{"Double", "getDoubleValue", "setDoubleValue"});
+        TYPES.put("java.lang.Boolean", new String[]{"Boolean", "getBooleanValue", "setBooleanValue"});
+        TYPES.put("java.util.Date", new String[]{"java.util.Date", "getDateValue", "setDateValue"});
+        TYPES.put("java.util.List", new String[]{"java.util.List", "getListValue", "setListValue"});
+        TYPES.put("java.util.Map", new String[]{"java.util.Map", "getMapValue", "setMapValue"});
+        TYPES.put("org.bson.Document", new String[]{"org.bson.Document", "getEmbeddedDocument", "setEmbeddedDocument"});
+        TYPES.put("org.bson.types.ObjectId", new String[]{"org.bson.types.ObjectId", null, "setValue"});
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement modelFields = processingEnv.getElementUtils().getTypeElement(MODEL_FIELDS);
+        if(modelFields == null) return false;
+        for(Element element : roundEnv.getElementsAnnotatedWith(modelFields)){
+            if(element.getKind() != ElementKind.CLASS){
+                error(element, "@ModelFields can only be used on model classes");
+                continue;
+            }
+            TypeElement model = (TypeElement) element;
+            if(!extendsModel(model)){
+                error(model, "@ModelFields can only be used on subclasses of " + MODEL);
+                continue;
+            }
+            List<Field> fields = readFields(model);
+            if(fields != null) generate(model, fields);
+        }
+        return true;
+    }
+
+    private boolean extendsModel(TypeElement type){
+        TypeMirror superclass = type.getSuperclass();
+        while(superclass instanceof DeclaredType){
+            TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+            if(element.getQualifiedName().contentEquals(MODEL)) return true;
+            superclass = element.getSuperclass();
+        }
+        return false;
+    }
+
+    /**
+     * Reads and checks the declared fields
+     * @return The fields, or null when a declaration is invalid
+     */
+    private List<Field> readFields(TypeElement model){
+        List<Field> fields = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        // Different names can give the same constant or accessors, mainGroup and main_group both give MAIN_GROUP
+        Map<String, String> constants = new HashMap<>();
+        Map<String, String> properties = new HashMap<>();
+        boolean valid = true;
+        for(AnnotationMirror annotation : model.getAnnotationMirrors()){
+            if(!((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(MODEL_FIELDS)) continue;
+            for(AnnotationValue item : (List<? extends AnnotationValue>) value(annotation, "value")){
+                AnnotationMirror declaration = (AnnotationMirror) item.getValue();
+                Field field = new Field();
+                field.name = (String) value(declaration, "name");
+                Object checkLinks = value(declaration, "checkLinks");
+                field.checkLinks = checkLinks == null || (Boolean) checkLinks;
+                TypeMirror type = (TypeMirror) value(declaration, "type");
+                String typeName = type instanceof DeclaredType ? ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString() : type.toString();
+                field.accessors = TYPES.get(typeName);
+
+                if(field.accessors == null){
+                    error(model, "Field " + field.name + " has unsupported type " + typeName + ", supported are " + TYPES.keySet());
+                    valid = false;
+                } else if(!SourceVersion.isIdentifier(field.name) || SourceVersion.isKeyword(field.name)){
+                    error(model, "Field name " + field.name + " can not be used for accessors");
+                    valid = false;
+                } else if(!names.add(field.name)){
+                    error(model, "Field " + field.name + " is declared twice");
+                    valid = false;
+                } else if(constants.containsKey(constant(field.name))){
+                    error(model, "Fields " + constants.get(constant(field.name)) + " and " + field.name + " both give the constant " + constant(field.name));
+                    valid = false;
+                } else if(properties.containsKey(property(field.name))){
+                    error(model, "Fields " + properties.get(property(field.name)) + " and " + field.name + " both give the accessors get" + property(field.name) + " and set" + property(field.name));
+                    valid = false;
+                } else {
+                    constants.put(constant(field.name), field.name);
+                    properties.put(property(field.name), field.name);
+                }
+                fields.add(field);
+            }
+        }
+        return valid ? fields : null;
+    }
+
+    private static Object value(AnnotationMirror annotation, String name){
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet()){
+            if(entry.getKey().getSimpleName().contentEquals(name)) return entry.getValue().getValue();
+        }
+        return null;
+    }
+
+    private void generate(TypeElement model, List<Field> fields){
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(model);
+        String packageName = packageElement.isUnnamed() ? null : packageElement.getQualifiedName().toString();
+        String modelName = model.getSimpleName().toString();
+        String className = modelName + "Fields";
+        String modelType = model.getQualifiedName().toString();
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    (packageName != null ? packageName + "." : "") + className, model);
+            try (Writer writer = file.openWriter()) {
+                if(packageName != null) writer.write("package " + packageName + ";\n\n");
+                writer.write("/**\n * Typed accessors for the fields declared on {@link " + modelType + "}, generated by "
+                        + getClass().getSimpleName() + "\n */\n");
+                writer.write("public final class " + className + " {\n\n");
+
+                for(Field field : fields){
+                    writer.write("    public static final String " + constant(field.name) + " = \"" + field.name + "\";\n");
+                }
+                writer.write("\n    private " + className + "(){\n    }\n");
+
+                for(Field field : fields){
+                    String type = field.accessors[0];
+                    String constant = constant(field.name);
+                    String property = property(field.name);
+
+                    writer.write("\n    public static " + type + " get" + property + "(" + modelType + " model){\n");
+                    if(field.accessors[1] != null){
+                        writer.write("        return model." + field.accessors[1] + "(" + constant + ");\n");
+                    } else {
+                        writer.write("        Object value = model.getValue(" + constant + ");\n");
+                        writer.write("        return value instanceof " + type + " ? (" + type + ") value : null;\n");
+                    }
+                    writer.write("    }\n");
+
+                    writer.write("\n    public static void set" + property + "(" + modelType + " model, " + type + " value){\n");
+                    if("String".equals(type) && !field.checkLinks){
+                        writer.write("        model.setStringValue(" + constant + ", value, false);\n");
+                    } else {
+                        writer.write("        model." + field.accessors[2] + "(" + constant + ", value);\n");
+                    }
+                    writer.write("    }\n");
+                }
+                writer.write("\n}\n");
+            }
+        } catch (IOException e) {
+            error(model, "Could not generate " + className + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts a field name to a constant name, mainGroup becomes MAIN_GROUP
+     */
+    static String constant(String name){
+        StringBuilder builder = new StringBuilder(name.length() + 4);
+        for(int i = 0; i < name.length(); i++){
+            char c = name.charAt(i);
+            if(Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(name.charAt(i - 1))) builder.append('_');
+            builder.append(Character.toUpperCase(c));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Converts a field name to the name used in its accessors, mainGroup becomes MainGroup
+     */
+    static String property(String name){
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private void error(Element element, String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static class Field {
+        private String name;
+        private String[] accessors;
+        private boolean checkLinks = true;
+    }
+
+}
@@ -1,13 +1,27 @@
 package mbp.common.controllers;
 
 import com.wwk.meubelplan.common.logger.Logger;
-import com.wwk.meubelplan.common.mongo.db.Database;
-import com.wwk.meubelplan.common.mongo.db.DatabaseResult;
-import com.wwk.meubelplan.common.mongo.db.Model;
+import mbp.common.db.Database;
+import mbp.common.db.DatabaseResult;
+import mbp.common.db.IndexDefinition;
+import mbp.common.db.JsonStreamWriter;
+import mbp.common.db.Model;
+import mbp.common.db.PartitionedScan;
+import mbp.common.db.ResultPage;
+import mbp.common.db.SerializationSchema;
+import mbp.common.db.ViewProfile;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by sem on 08-10-16.
@@ -17,8 +31,52 @@ public abstract class Controller<T extends Model> {
     protected final Class<T> type;
     protected final Logger logger = Logger.getLogger(Controller.class.getSimpleName());
 
+    private final Map<String, ViewProfile> profiles = new HashMap<>();
+
+    private final boolean overridesToJson;
+
     public Controller(Class<T> type){
         this.type = type;
+        this.overridesToJson = overridesToJson(getClass());
+    }
+
+    private static boolean overridesToJson(Class<?> controller){
+        try {
+            return controller.getMethod("toJson", Model.class).getDeclaringClass() != Controller.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Registers a view profile, subclasses register the profiles of their views in their constructor
+     * @param profile   The profile
+     */
+    protected void registerProfile(ViewProfile profile){
+        profiles.put(profile.getName(), profile);
+    }
+
+    /**
+     * Returns a registered view profile
+     * @param name  The name of the profile
+     * @return      The profile, or null when no profile with this name is registered
+     */
+    public ViewProfile getProfile(String name){
+        if(name == null) return null;
+        ViewProfile profile = profiles.get(name);
+        if(profile == null) logger.warning("Unknown view profile "+name+" for "+type.getSimpleName()+", loading whole documents");
+        return profile;
+    }
+
+    /**
+     * Finds the models matching a filter with the fields of a view profile
+     * @param filter    The filter
+     * @param profile   The name of a registered profile
+     * @return          The result, models of a partial profile can not be saved
+     */
+    public DatabaseResult<T> find(Document filter, String profile){
+        DatabaseResult<T> result = find(filter);
+        return result != null ? result.profile(getProfile(profile)) : null;
     }
 
     public DatabaseResult<T> find(){
@@ -29,13 +87,57 @@ public abstract class Controller<T extends Model> {
         return Database.getInstance().query(type, filter);
     }
 
+    /**
+     * Reads a page of the models matching a filter, after the position of the token of the previous page. Deep pages
+     * cost the same as the first one, see {@link DatabaseResult#page(int, String)}.
+     * @param filter    The filter
+     * @param sort      The sort order, _id is added as the last key
+     * @param size      The number of models per page
+     * @param token     The token of the previous page, or null for the first page
+     * @return          The page with the token of the next page, or null when it could not be read
+     * @throws IllegalArgumentException When the token is malformed or was made for another sort order
+     */
+    public ResultPage<T> findPage(Document filter, Document sort, int size, String token){
+        return findPage(filter, sort, size, token, null);
+    }
+
+    /**
+     * Reads a page of the models matching a filter with the fields of a view profile
+     * @param profile   The name of a registered profile, or null to load whole documents
+     * @see #findPage(Document, Document, int, String)
+     */
+    public ResultPage<T> findPage(Document filter, Document sort, int size, String token, String profile){
+        DatabaseResult<T> result = find(filter);
+        if(result == null) return null;
+        if(sort != null) result.sort(sort);
+        return result.profile(getProfile(profile)).page(size, token);
+    }
+
+    /**
+     * Splits the models matching a filter into partitions which are read concurrently, for exports and other jobs
+     * over the whole collection
+     * @param filter        The filter, or null for all models
+     * @param partitions    The number of partitions
+     * @return              The scan
+     */
+    public PartitionedScan<T> scan(Document filter, int partitions){
+        return Database.getInstance().scan(type, filter, partitions);
+    }
+
     public T findOne(Document filter){
-        long count = Database.getInstance().count(type, filter);
-        if(count > 0) {
-            DatabaseResult<T> result = find(filter).limit(1);
-            return result.first();
-        }
-        return null;
+        return Database.getInstance().findOne(type, filter);
+    }
+
+    public T findOne(Document filter, Document projection){
+        return Database.getInstance().findOne(type, filter, projection);
+    }
+
+    public T findOne(Document filter, String profile){
+        return Database.getInstance().findOne(type, filter, getProfile(profile));
+    }
+
+    public boolean exists(Document filter){
+        return Database.getInstance().exists(type, filter);
     }
 
     public T findOne(String id){
@@ -58,6 +160,22 @@ public abstract class Controller<T extends Model> {
         }
     }
 
+    public T get(String id, String profile){
+        try {
+            return Database.getInstance().get(new ObjectId(id), type, getProfile(profile));
+        } catch (IllegalArgumentException | ClassCastException e){
+            return null;
+        }
+    }
+
+    public T get(ObjectId id, String profile){
+        try {
+            return Database.getInstance().get(id, type, getProfile(profile));
+        } catch (ClassCastException e){
+            return null;
+        }
+    }
+
     public List<T> cleanAll(List<T> models){
         return models;
     }
@@ -73,7 +191,21 @@ public abstract class Controller<T extends Model> {
         return save(model);
     }
 
+    /**
+     * Completes a model before it is saved by save, importSave or the {@link ImportEngine}, before the stored version
+     * is looked up
+     * @param model The model to save
+     */
+    protected void beforeSave(T model){
+    }
+
     public T save(T model){
+        if(model == null) return null;
+        if(model.isPartial()){
+            logger.warning("Refusing to save "+type.getSimpleName()+" "+model.getObjectId()+", it was loaded with view profile "+model.getViewProfile().getName());
+            return null;
+        }
+        beforeSave(model);
         T existingModel = findOne(model.getUniqueFilter());
 
         if(existingModel != null) {
@@ -95,6 +227,24 @@ public abstract class Controller<T extends Model> {
         }
     }
 
+    /**
+     * Declares the indexes the queries of this controller need, by default the indexes declared by the model
+     * @return The index definitions
+     */
+    public List<IndexDefinition> getIndexDefinitions(){
+        T model = Database.getInstance().newEntityInstance(type);
+        if(model == null) return new ArrayList<>(0);
+        return new ArrayList<IndexDefinition>(model.getIndexDefinitions());
+    }
+
+    /**
+     * Creates missing indexes of this controller, should be called at startup
+     * @return The differences between declared and existing indexes
+     */
+    public List<String> ensureIndexes(){
+        return Database.getInstance().ensureIndexes(type, getIndexDefinitions());
+    }
+
     public long count(){
         return Database.getInstance().count(type);
     }
@@ -103,29 +253,99 @@ public abstract class Controller<T extends Model> {
         return Database.getInstance().count(type, filter);
     }
 
+    /**
+     * Prepares a model for output to the frontend, called for every model serialized by toJson and writeJson
+     * @param model The model
+     * @return      The model to serialize
+     */
+    protected T prepareJson(T model){
+        return clean(model);
+    }
+
+    /**
+     * Subclasses which still override toJson(T) instead of prepareJson get their own output for each model
+     */
+    private boolean writeLegacyJson(JsonStreamWriter json, T model){
+        String jsonString = toJson(model);
+        if(jsonString == null || jsonString.equals("")){
+            logger.warning("JSON String was empty for object "+model.getObjectId());
+            return true;
+        }
+        return json.writeRaw(jsonString);
+    }
+
+    /**
+     * Returns the output defaults of the models of this controller, applied by toJson and writeJson without changing
+     * the models. Subclasses return a schema they build once.
+     * @return The schema, or null when documents are written as they are
+     */
+    public SerializationSchema getSerializationSchema(){
+        return null;
+    }
+
     public String toJson(T model){
-        model = clean(model);
-        return model.getDocument().toJson();
+        model = prepareJson(model);
+        SerializationSchema schema = getSerializationSchema();
+        return schema != null ? schema.toJson(model.getDocument()) : model.getDocument().toJson();
     }
 
     public String toJson(Iterable<T> models){
-        StringBuilder builder = new StringBuilder();
-        builder.append("[");
-        for(T model : models){
-            String jsonString = toJson(model);
-            if(jsonString != null && !jsonString.equals("")) {
-                if (builder.length() > 1) builder.append(",");
-                builder.append(jsonString);
-            }else{
+        StringWriter writer = new StringWriter();
+        if(!writeJson(models, writer)){
+            logger.warning("Could not write json of "+type.getSimpleName()+" list");
+            return null;
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes models as a JSON array straight to a writer, without building a string per model or for the whole array
+     * @param models    The models, a DatabaseResult is closed when writing stops early
+     * @param writer    The writer, flushed in chunks but not closed
+     * @return          False when writing failed before the end, for example because the client disconnected
+     */
+    public boolean writeJson(Iterable<T> models, Writer writer){
+        return writeJson(models, new JsonStreamWriter(writer));
+    }
+
+    /**
+     * Writes models as a JSON array in UTF-8 straight to a stream, optionally gzipped
+     * @param models    The models, a DatabaseResult is closed when writing stops early
+     * @param stream    The stream, flushed in chunks but not closed
+     * @param gzip      Whether to compress the output
+     * @return          False when writing failed before the end, for example because the client disconnected
+     */
+    public boolean writeJson(Iterable<T> models, OutputStream stream, boolean gzip){
+        try {
+            return writeJson(models, new JsonStreamWriter(stream, gzip));
+        } catch (IOException e) {
+            logger.warning("Could not start writing json: "+e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean writeJson(Iterable<T> models, JsonStreamWriter json){
+        SerializationSchema schema = getSerializationSchema();
+        Iterator<T> iterator = models.iterator();
+        try {
+            while(iterator.hasNext()){
+                T model = iterator.next();
                 if(model == null){
                     logger.warning("Got empty object in list");
-                }else{
-                    logger.warning("JSON String was empty for object "+model.getObjectId().toHexString());
+                    continue;
+                }
+                if(!(overridesToJson ? writeLegacyJson(json, model) : json.write(prepareJson(model).getDocument(), schema))) return false;
+            }
+            return json.end();
+        } finally {
+            if(iterator instanceof AutoCloseable){
+                try {
+                    ((AutoCloseable) iterator).close();
+                } catch (Exception e) {
+                    logger.warning("Could not close result: "+e.getMessage());
                 }
             }
         }
-        builder.append("]");
-        return builder.toString();
     }
 
     public T fromJson(String json){
@@ -0,0 +1,415 @@
+package mbp.common.controllers;
+
+import com.wwk.meubelplan.common.logger.Logger;
+import mbp.common.db.BatchWriteError;
+import mbp.common.db.Database;
+import mbp.common.db.DatabaseResult;
+import mbp.common.db.Model;
+import org.bson.Document;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Imports a stream of models in batches, with the result of {@link Controller#save(Model)} for each item but a few
+ * round trips per batch instead of several per item:
+ * <ul>
+ *     <li>{@link Controller#beforeSave(Model)} completes each item</li>
+ *     <li>the stored versions of all items of a batch are read with one query on their unique filters, an item
+ *     which is stored is merged into the stored model with update(), like save does; unique filters which are not
+ *     plain equality filters are resolved with findOne per item</li>
+ *     <li>the batch is written with {@link Database#saveAll(Class, List)}, which applies updateBeforeSave and writes
+ *     partial updates, replaces and inserts as bulk writes</li>
+ * </ul>
+ * Batches run on a pool of the configured parallelism. With a checkpoint file, the number of items from the start of
+ * the input which have been written is stored after every batch, a new run with the same input and file skips them.
+ * The file is removed when the import completes.
+ * <pre>
+ *     ImportReport report = new ImportEngine&lt;&gt;(productController).batchSize(500).parallelism(4)
+ *             .checkpoint(new File("/tmp/feed.checkpoint")).run(products);
+ * </pre>
+ */
+public class ImportEngine<T extends Model> {
+
+    private static final Logger logger = Logger.getLogger(ImportEngine.class.getSimpleName());
+
+    private final Controller<T> controller;
+    private int batchSize = 500;
+    private int parallelism = 1;
+    private File checkpoint;
+
+    public ImportEngine(Controller<T> controller){
+        this.controller = controller;
+    }
+
+    /**
+     * @param batchSize The number of items resolved and written together, 500 by default
+     * @return          This engine
+     */
+    public ImportEngine<T> batchSize(int batchSize){
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * @param parallelism   The number of batches imported at the same time, 1 by default. Items of different batches
+     *                      with the same unique key should not occur with a parallelism above 1.
+     * @return              This engine
+     */
+    public ImportEngine<T> parallelism(int parallelism){
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @param checkpoint    The file to store the progress in, or null to import without checkpoints
+     * @return              This engine
+     */
+    public ImportEngine<T> checkpoint(File checkpoint){
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    public ImportReport run(Iterable<T> items){
+        return run(items.iterator());
+    }
+
+    public ImportReport run(Stream<T> items){
+        try (Stream<T> stream = items) {
+            return run(stream.iterator());
+        }
+    }
+
+    /**
+     * Imports all items, resuming after the position in the checkpoint file when there is one
+     * @param items The items, in the same order on every run
+     * @return      The report, {@link ImportReport#isCompleted()} is false when a batch failed as a whole
+     */
+    public ImportReport run(Iterator<T> items){
+        long start = readCheckpoint();
+        long skipped = 0;
+        while(skipped < start && items.hasNext()){
+            items.next();
+            skipped++;
+        }
+        ImportReport report = new ImportReport(skipped);
+        Progress progress = new Progress(report, skipped);
+        ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism, importThreads()) : null;
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+
+        long index = 0;
+        long offset = skipped;
+        try {
+            while(items.hasNext() && report.getFailure() == null){
+                List<T> batch = new ArrayList<>(batchSize);
+                int read = 0;
+                while(read < batchSize && items.hasNext()){
+                    T item = items.next();
+                    read++;
+                    if(item != null) batch.add(item);
+                }
+                long batchIndex = index++;
+                long end = offset + read;
+                offset = end;
+                if(executor == null){
+                    runBatch(batchIndex, batch, end, report, progress);
+                } else {
+                    inFlight.acquire();
+                    executor.execute(() -> {
+                        try {
+                            runBatch(batchIndex, batch, end, report, progress);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.fail("Interrupted");
+        } finally {
+            if(executor != null){
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    report.fail("Interrupted");
+                }
+            }
+        }
+
+        if(report.getFailure() == null){
+            report.complete();
+            deleteCheckpoint();
+        }
+        logger.info("Import of "+controller.type.getSimpleName()+": "+report);
+        return report;
+    }
+
+    private void runBatch(long index, List<T> items, long end, ImportReport report, Progress progress){
+        try {
+            importBatch(index, items, report);
+            progress.done(index, end);
+        } catch (Exception e) {
+            logger.warning("Import batch "+index+" of "+controller.type.getSimpleName()+" failed: "+e.getMessage());
+            report.fail("Batch "+index+" failed: "+e.getMessage());
+        }
+    }
+
+    private void importBatch(long index, List<T> items, ImportReport report){
+        long start = System.nanoTime();
+        for(T item : items) controller.beforeSave(item);
+
+        Resolved resolved = resolve(items);
+        List<BatchWriteError> errors = Database.getInstance().saveAll(controller.type, resolved.models);
+        for(BatchWriteError error : errors){
+            if(error.getModel() == null) throw new IllegalStateException(error.getMessage());
+        }
+
+        ImportReport.Batch batch = new ImportReport.Batch(index, items.size(), resolved.inserted, resolved.updated, errors.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        report.add(batch, errors);
+        logger.info("Imported "+controller.type.getSimpleName()+" "+batch);
+    }
+
+    /**
+     * Finds the stored version of each item and merges the item into it, items with the same unique key within a
+     * batch are merged into one model
+     */
+    private Resolved resolve(List<T> items){
+        Resolved resolved = new Resolved(items.size());
+        Map<List<String>, List<T>> groups = new LinkedHashMap<>();
+        for(T item : items){
+            Document filter = item.getUniqueFilter();
+            if(!isEqualityFilter(filter)){
+                T stored = controller.findOne(filter);
+                resolved.add(item, stored);
+                continue;
+            }
+            if(filter.containsValue(null)){
+                resolved.add(item, null);
+                continue;
+            }
+            List<String> fields = new ArrayList<>(filter.keySet());
+            List<T> group = groups.get(fields);
+            if(group == null){
+                group = new ArrayList<>();
+                groups.put(fields, group);
+            }
+            group.add(item);
+        }
+
+        for(Map.Entry<List<String>, List<T>> group : groups.entrySet()){
+            List<String> fields = group.getKey();
+            Map<List<Object>, T> stored = findStored(fields, group.getValue());
+            Map<List<Object>, T> merged = new HashMap<>(group.getValue().size() * 2);
+            for(T item : group.getValue()){
+                List<Object> key = key(item.getUniqueFilter(), fields);
+                T target = merged.get(key);
+                if(target != null){
+                    target.update(item);
+                    continue;
+                }
+                merged.put(key, resolved.add(item, stored.get(key)));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Reads the stored models of a group of items which have a unique filter on the same fields, with one query
+     */
+    private Map<List<Object>, T> findStored(List<String> fields, List<T> items){
+        Document query;
+        if(fields.size() == 1){
+            List<Object> values = new ArrayList<>(items.size());
+            for(T item : items) values.add(item.getUniqueFilter().get(fields.get(0)));
+            query = new Document(fields.get(0), new Document("$in", values));
+        } else {
+            List<Document> filters = new ArrayList<>(items.size());
+            for(T item : items) filters.add(item.getUniqueFilter());
+            query = new Document("$or", filters);
+        }
+
+        Map<List<Object>, T> stored = new HashMap<>(items.size() * 2);
+        DatabaseResult<T> result = Database.getInstance().query(controller.type, query);
+        if(result == null) throw new IllegalStateException("Could not read the stored "+controller.type.getSimpleName());
+        result.forEach(model -> {
+            if(model == null) return;
+            List<Object> key = new ArrayList<>(fields.size());
+            for(String field : fields) key.add(normalize(valueOf(model, field)));
+            if(!stored.containsKey(key)) stored.put(key, model);
+        });
+        return stored;
+    }
+
+    /**
+     * Whether a filter only compares fields to plain values, so stored models can be matched to it in memory
+     */
+    private static boolean isEqualityFilter(Document filter){
+        if(filter == null || filter.isEmpty()) return false;
+        for(Map.Entry<String, Object> entry : filter.entrySet()){
+            if(entry.getKey().startsWith("$")) return false;
+            if(entry.getValue() instanceof Map || entry.getValue() instanceof List) return false;
+        }
+        return true;
+    }
+
+    private static List<Object> key(Document filter, List<String> fields){
+        List<Object> key = new ArrayList<>(fields.size());
+        for(String field : fields) key.add(normalize(filter.get(field)));
+        return key;
+    }
+
+    private static Object valueOf(Model model, String field){
+        int dot = field.indexOf('.');
+        if(dot < 0) return model.getValue(field);
+        Object value = model.getValue(field.substring(0, dot));
+        for(String part : field.substring(dot + 1).split("\\.")){
+            if(!(value instanceof Map)) return null;
+            value = ((Map) value).get(part);
+        }
+        return value;
+    }
+
+    /**
+     * The server compares numbers by value, so 1, 1L and 1.0 are the same key
+     */
+    private static Object normalize(Object value){
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+            return ((Number) value).longValue();
+        }
+        if(value instanceof Double || value instanceof Float){
+            double number = ((Number) value).doubleValue();
+            if(number == Math.rint(number) && !Double.isInfinite(number)) return (long) number;
+        }
+        return value;
+    }
+
+    private long readCheckpoint(){
+        if(checkpoint == null || !checkpoint.exists()) return 0;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(checkpoint)) {
+            properties.load(in);
+            long position = Long.parseLong(properties.getProperty("position", "0"));
+            logger.info("Resuming import of "+controller.type.getSimpleName()+" after "+position+" items");
+            return position;
+        } catch (IOException | NumberFormatException e) {
+            logger.warning("Could not read import checkpoint "+checkpoint+", starting from the beginning: "+e.getMessage());
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long position){
+        if(checkpoint == null) return;
+        Properties properties = new Properties();
+        properties.setProperty("position", String.valueOf(position));
+        File temporary = new File(checkpoint.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                properties.store(out, "Import of " + controller.type.getSimpleName());
+            }
+            Files.move(temporary.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Could not write import checkpoint "+checkpoint+": "+e.getMessage());
+        }
+    }
+
+    private void deleteCheckpoint(){
+        if(checkpoint != null && checkpoint.exists() && !checkpoint.delete()){
+            logger.warning("Could not delete import checkpoint "+checkpoint);
+        }
+    }
+
+    private static ThreadFactory importThreads(){
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "import-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The models to write for a batch
+     */
+    private class Resolved {
+
+        private final List<T> models;
+        private int inserted = 0;
+        private int updated = 0;
+
+        private Resolved(int size){
+            this.models = new ArrayList<>(size);
+        }
+
+        /**
+         * Adds an item, merged into its stored version when there is one
+         * @return The model which will be written
+         */
+        private T add(T item, T stored){
+            if(stored != null){
+                stored.update(item);
+                updated++;
+                models.add(stored);
+                return stored;
+            }
+            inserted++;
+            models.add(item);
+            return item;
+        }
+
+    }
+
+    /**
+     * Tracks which batches are done, batches may finish out of order. The position is the end of the last batch
+     * before which all batches are done.
+     */
+    private class Progress {
+
+        private final ImportReport report;
+        private final TreeMap<Long, Long> done = new TreeMap<>();
+        private long next = 0;
+
+        private Progress(ImportReport report, long position){
+            this.report = report;
+            report.setPosition(position);
+        }
+
+        private synchronized void done(long index, long end){
+            done.put(index, end);
+            Long position = null;
+            while(done.containsKey(next)){
+                position = done.remove(next++);
+            }
+            if(position != null){
+                report.setPosition(position);
+                writeCheckpoint(position);
+            }
+        }
+
+    }
+
+}
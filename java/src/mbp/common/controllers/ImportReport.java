@@ -0,0 +1,164 @@
+package mbp.common.controllers;
+
+import mbp.common.db.BatchWriteError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of an {@link ImportEngine} run: totals, the throughput of every batch and the failed writes
+ */
+public class ImportReport {
+
+    private final long skipped;
+    private final List<Batch> batches = new ArrayList<>();
+    private final List<BatchWriteError> errors = new ArrayList<>();
+    private long position;
+    private boolean completed = false;
+    private String failure;
+
+    ImportReport(long skipped){
+        this.skipped = skipped;
+        this.position = skipped;
+    }
+
+    synchronized void add(Batch batch, List<BatchWriteError> batchErrors){
+        batches.add(batch);
+        errors.addAll(batchErrors);
+    }
+
+    synchronized void setPosition(long position){
+        this.position = position;
+    }
+
+    synchronized void complete(){
+        this.completed = true;
+    }
+
+    synchronized void fail(String failure){
+        if(this.failure == null) this.failure = failure;
+    }
+
+    /**
+     * @return The number of items skipped because a checkpoint showed they were imported before
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return The number of items from the start of the input which have been written, the position to resume from
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return Whether all items were processed, individual writes may still have failed
+     */
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return Why the import stopped before the end, or null
+     */
+    public synchronized String getFailure() {
+        return failure;
+    }
+
+    public synchronized List<Batch> getBatches() {
+        return Collections.unmodifiableList(new ArrayList<>(batches));
+    }
+
+    public synchronized List<BatchWriteError> getErrors() {
+        return Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public synchronized long getItems(){
+        long items = 0;
+        for(Batch batch : batches) items += batch.items;
+        return items;
+    }
+
+    public synchronized long getInserted(){
+        long inserted = 0;
+        for(Batch batch : batches) inserted += batch.inserted;
+        return inserted;
+    }
+
+    public synchronized long getUpdated(){
+        long updated = 0;
+        for(Batch batch : batches) updated += batch.updated;
+        return updated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (completed ? "Completed" : "Stopped") + " at " + position + ": " + getItems() + " items in " + batches.size()
+                + " batches, " + getInserted() + " new, " + getUpdated() + " updated, " + errors.size() + " failed"
+                + (skipped > 0 ? ", " + skipped + " skipped" : "") + (failure != null ? " (" + failure + ")" : "");
+    }
+
+    /**
+     * The numbers of a single batch
+     */
+    public static class Batch {
+
+        private final long index;
+        private final int items;
+        private final int inserted;
+        private final int updated;
+        private final int failed;
+        private final long millis;
+
+        Batch(long index, int items, int inserted, int updated, int failed, long millis){
+            this.index = index;
+            this.items = items;
+            this.inserted = inserted;
+            this.updated = updated;
+            this.failed = failed;
+            this.millis = millis;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        public int getItems() {
+            return items;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return The number of items per second of this batch
+         */
+        public double getThroughput(){
+            return millis > 0 ? items * 1000.0 / millis : items;
+        }
+
+        @Override
+        public String toString() {
+            return "batch " + index + ": " + items + " items in " + millis + "ms (" + Math.round(getThroughput()) + "/s), "
+                    + inserted + " new, " + updated + " updated, " + failed + " failed";
+        }
+
+    }
+
+}
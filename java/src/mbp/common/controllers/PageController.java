@@ -1,6 +1,9 @@
 package mbp.common.controllers;
 
 import com.wwk.meubelplan.common.mongo.model.Page;
+import mbp.common.db.IndexDefinition;
+
+import java.util.List;
 
 /**
  * Created by sem on 02-04-17.
@@ -11,4 +14,11 @@ public class PageController extends Controller<Page> {
         super(Page.class);
     }
 
+    @Override
+    public List<IndexDefinition> getIndexDefinitions() {
+        List<IndexDefinition> definitions = super.getIndexDefinitions();
+        definitions.add(IndexDefinition.ascending("name"));
+        return definitions;
+    }
+
 }
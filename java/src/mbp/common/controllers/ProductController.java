@@ -1,26 +1,53 @@
 package mbp.common.controllers;
 
 import mbp.common.db.Database;
-import mbp.common.db.DatabaseResult;
+import mbp.common.db.IndexDefinition;
+import mbp.common.db.SerializationSchema;
+import mbp.common.db.ViewProfile;
 import mbp.common.model.Company;
 import mbp.common.model.Product;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 public class ProductController extends Controller<Product> {
 
     private static final Logger logger = Logger.getLogger(ProductController.class.getName());
+
+    // List values needed for correct initialization in backend js, written when the product has none
+    private static final SerializationSchema SCHEMA = new SerializationSchema()
+            .defaultEmptyList("mainGroup", "group", "environment", "design", "properties", "matchingProducts", "materialtype", "colortype");
+    private static final Pattern NAME_CHARACTERS = Pattern.compile("[^a-z0-9/ ]");
+    private static final Pattern SPACES = Pattern.compile(" ");
     private CompanyController companyController = new CompanyController();
 
+    public static final String PROFILE_LIST_TILE = "listTile";
+    public static final String PROFILE_LOOKUP = "lookup";
+    public static final String PROFILE_DETAIL = "detail";
+    public static final String PROFILE_EXPORT = "export";
+
     public ProductController(){
         super(Product.class);
+        registerProfile(ViewProfile.of(PROFILE_LIST_TILE, "id", "name", "title", "supid", "supplier", "images", "price", "mainGroup", "group", "visible"));
+        registerProfile(ViewProfile.of(PROFILE_LOOKUP, "id", "supid", "supplier", "updateDate"));
+        registerProfile(ViewProfile.full(PROFILE_DETAIL));
+        registerProfile(ViewProfile.full(PROFILE_EXPORT));
     }
 
     public Product findOneById(String id){
-        DatabaseResult<Product> result = Database.getInstance().query(Product.class, new Document("id", id)).limit(1);
-        return result.iterator().next();
+        SupplierProductIndex index = SupplierProductIndex.getInstance();
+        ObjectId objectId = index.isReady() ? index.findById(id) : null;
+        if(objectId != null){
+            Product product = get(objectId);
+            if(product != null && id.equals(product.getValue("id"))) return product;
+            index.removeById(id, objectId);
+        }
+        Product product = findOne(new Document("id", id));
+        if(product != null && index.isReady()) index.add(product);
+        return product;
     }
 
     public Product findOneBySupplierId(String id){
@@ -28,16 +55,30 @@ public class ProductController extends Controller<Product> {
         return findOneBySupplierId(id, null);
     }
 
+    /**
+     * Finds a product by its id at a supplier, or by its id when the supplier has no such product. A hit in the
+     * {@link SupplierProductIndex} is read by _id, a miss may be a product the index has not seen yet and is queried.
+     */
     public Product findOneBySupplierId(String id, String companyId){
         Company company = companyController.get(companyId);
         if(company == null) {
             logger.info("Could not get company for id " + companyId);
             return null;
         }
-        Document filter = new Document("supid", id).append("supplier", company.getObjectId());
+        SupplierProductIndex index = SupplierProductIndex.getInstance();
+        ObjectId supplier = company.getObjectId();
+        ObjectId objectId = index.isReady() ? index.findBySupplierId(supplier, id) : null;
+        if(objectId != null){
+            Product product = get(objectId);
+            if(product != null && id.equals(product.getValue("supid")) && supplier.equals(product.getValue("supplier"))) return product;
+            index.removeBySupplierId(supplier, id, objectId);
+        }
+
+        Document filter = new Document("supid", id).append("supplier", supplier);
 //        logger.info("Finding product by supid, using filter: " + filter.toJson());
         Product product = findOne(filter);
         if(product != null){
+            if(index.isReady()) index.add(product);
             return product;
         }else{
             return findOneById(id);
@@ -57,16 +98,14 @@ public class ProductController extends Controller<Product> {
     }
 
     @Override
-    public Product save(Product product) {
-        if(product == null) return null;
+    protected void beforeSave(Product product) {
         if(product.getName() == null || product.getName().equals("")){
             if(product.getTitle() != null) {
                 product.setName(
-                    product.getTitle().toLowerCase().replaceAll("[^a-z0-9/ ]", "").replaceAll(" ", "_")
+                    SPACES.matcher(NAME_CHARACTERS.matcher(product.getTitle().toLowerCase()).replaceAll("")).replaceAll("_")
                 );
             }
         }
-        return super.save(product);
     }
 
     public Product importSave(Product product){
@@ -88,17 +127,18 @@ public class ProductController extends Controller<Product> {
     }
 
     @Override
-    public String toJson(Product model) {
-        // Setting list values needed for correct initialization in backend js
-        if(model.getMainGroup() == null) model.setMainGroup(new ArrayList<>(0));
-        if(model.getGroup() == null) model.setGroup(new ArrayList<>(0));
-        if(model.getEnvironment() == null) model.setEnvironment(new ArrayList<>(0));
-        if(model.getDesign() == null) model.setDesign(new ArrayList<>(0));
-        if(model.getProperties() == null) model.setProperties(new ArrayList<>(0));
-        if(model.getMatchingProducts() == null) model.setMatchingProducts(new ArrayList<>(0));
-        if(model.getMaterialtype() == null) model.setMaterialtype(new ArrayList<>(0));
-        if(model.getColortype() == null) model.setColortype(new ArrayList<>(0));
-
-        return super.toJson(model);
+    public List<IndexDefinition> getIndexDefinitions() {
+        List<IndexDefinition> definitions = super.getIndexDefinitions();
+        definitions.add(IndexDefinition.ascending("supid", "supplier"));
+        definitions.add(IndexDefinition.ascending("id"));
+        definitions.add(IndexDefinition.ascending("visible"));
+        definitions.add(IndexDefinition.ascending("dealers"));
+        definitions.add(IndexDefinition.ascending("updateDate"));
+        return definitions;
+    }
+
+    @Override
+    public SerializationSchema getSerializationSchema() {
+        return SCHEMA;
     }
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+package mbp.common.controllers;
+
+import com.mongodb.client.FindIterable;
+import mbp.common.db.Database;
+import mbp.common.db.Model;
+import mbp.common.db.WriteListener;
+import mbp.common.model.Product;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * In-process index from (supplier, supid) and from product id to the ObjectId of the product, so
+ * {@link ProductController#findOneBySupplierId(String, String)} can find a known product with a hash probe and a get
+ * by _id instead of its queries. The index is built with a projected scan of all products on a background thread, kept up to date by the
+ * writes made through {@link Database} and refreshed every 30 seconds with the products of which the updateDate
+ * changed, which picks up the writes of other processes.
+ * <p>
+ * Entries may be stale: a product of which the supid changed keeps its old key until it is looked up, and products
+ * deleted or updated by filter are not removed. Callers check the product they get against the key and remove the
+ * entry when it does not match. Entries may also be missing, for writes of other processes since the last refresh,
+ * updates by filter and clock skew, so a miss is not proof that a product does not exist and callers fall back to
+ * their queries. Call {@link #getInstance()} at startup to build the index before the first lookup.
+ */
+public class SupplierProductIndex implements WriteListener {
+
+    private static final Logger logger = Logger.getLogger(SupplierProductIndex.class.getName());
+
+    private static final String COLLECTION = Product.class.getSimpleName();
+    private static final Document PROJECTION = new Document("supid", 1).append("supplier", 1).append("id", 1).append("updateDate", 1);
+    private static final long REFRESH_INTERVAL = 30000L;
+    // Other processes may stamp a product shortly before a refresh and write it after, so refreshes overlap
+    private static final long REFRESH_OVERLAP = 5000L;
+    private static final int SCAN_BATCH_SIZE = 5000;
+
+    private static final Object instanceLock = new Object();
+    private static volatile SupplierProductIndex instance;
+
+    private final ConcurrentHashMap<SupplierKey, ObjectId> bySupplierId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ObjectId> byId = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+    private final Object refreshLock = new Object();
+
+    private volatile boolean ready = false;
+    private volatile long highWater = 0;
+
+    private SupplierProductIndex(){
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "product-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the shared index, the first call starts building it in the background
+     * @return The index, lookups can only be trusted when {@link #isReady()}
+     */
+    public static SupplierProductIndex getInstance(){
+        SupplierProductIndex index = instance;
+        if(index == null){
+            synchronized (instanceLock) {
+                if(instance == null){
+                    SupplierProductIndex created = new SupplierProductIndex();
+                    Database.addWriteListener(created);
+                    created.refresher.scheduleWithFixedDelay(created::tick, 0, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+                    instance = created;
+                }
+                index = instance;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return Whether the initial scan has completed
+     */
+    public boolean isReady(){
+        return ready;
+    }
+
+    /**
+     * @param supplier  The ObjectId of the supplier
+     * @param supid     The id of the product at the supplier
+     * @return          The ObjectId of the product, or null when it is not known
+     */
+    public ObjectId findBySupplierId(ObjectId supplier, String supid){
+        if(supplier == null || supid == null) return null;
+        return bySupplierId.get(new SupplierKey(supplier, supid));
+    }
+
+    /**
+     * @param id    The id field of the product
+     * @return      The ObjectId of the product, or null when it is not known
+     */
+    public ObjectId findById(String id){
+        return id != null ? byId.get(id) : null;
+    }
+
+    /**
+     * Removes an entry which turned out to be stale, unless it has been replaced in the meantime
+     */
+    public void removeBySupplierId(ObjectId supplier, String supid, ObjectId objectId){
+        if(supplier != null && supid != null && objectId != null) bySupplierId.remove(new SupplierKey(supplier, supid), objectId);
+    }
+
+    /**
+     * Removes an entry which turned out to be stale, unless it has been replaced in the meantime
+     */
+    public void removeById(String id, ObjectId objectId){
+        if(id != null && objectId != null) byId.remove(id, objectId);
+    }
+
+    /**
+     * @return The number of (supplier, supid) entries
+     */
+    public int size(){
+        return bySupplierId.size();
+    }
+
+    private void tick(){
+        try {
+            if(ready){
+                synchronized (refreshLock) {
+                    refresh();
+                }
+            } else {
+                build();
+            }
+        } catch (Exception e){
+            logger.warning("Could not "+(ready ? "refresh" : "build")+" the product index: "+e.getMessage());
+        }
+    }
+
+    private void build(){
+        synchronized (refreshLock) {
+            long start = System.currentTimeMillis();
+            FindIterable<Document> documents = Database.getInstance().queryDocuments(new Document(), Product.class);
+            if(documents == null) return;
+            long count = load(documents);
+            ready = true;
+            logger.info("Built product index of "+count+" products ("+bySupplierId.size()+" supplier ids, "+byId.size()+" ids) in "+(System.currentTimeMillis() - start)+"ms");
+        }
+    }
+
+    private void refresh(){
+        Document filter = new Document("updateDate", new Document("$gte", new Date(highWater - REFRESH_OVERLAP)));
+        FindIterable<Document> documents = Database.getInstance().queryDocuments(filter, Product.class);
+        if(documents != null) load(documents);
+    }
+
+    private long load(FindIterable<Document> documents){
+        long count = 0;
+        long newest = highWater;
+        for(Document document : documents.projection(PROJECTION).batchSize(SCAN_BATCH_SIZE)){
+            add(document);
+            Object updateDate = document.get("updateDate");
+            if(updateDate instanceof Date) newest = Math.max(newest, ((Date) updateDate).getTime());
+            count++;
+        }
+        highWater = newest;
+        return count;
+    }
+
+    private void add(Document document){
+        if(document == null || !(document.get("_id") instanceof ObjectId)) return;
+        add((ObjectId) document.get("_id"), document.get("supid"), document.get("supplier"), document.get("id"));
+    }
+
+    private void add(ObjectId objectId, Object supid, Object supplier, Object id){
+        if(objectId == null) return;
+        if(supid instanceof String && supplier instanceof ObjectId) bySupplierId.put(new SupplierKey((ObjectId) supplier, (String) supid), objectId);
+        if(id instanceof String) byId.put((String) id, objectId);
+    }
+
+    /**
+     * Adds a product which was found without the index
+     * @param product   The product
+     */
+    public void add(Model product){
+        // Read through getValue, getDocument would make the next save of the model a full replace
+        if(product != null) add(product.getObjectId(), product.getValue("supid"), product.getValue("supplier"), product.getValue("id"));
+    }
+
+    @Override
+    public void saved(Model model) {
+        if(COLLECTION.equals(model.getClassName())) add(model);
+    }
+
+    @Override
+    public void deleted(Model model) {
+        if(!COLLECTION.equals(model.getClassName())) return;
+        Object supid = model.getValue("supid");
+        Object supplier = model.getValue("supplier");
+        Object id = model.getValue("id");
+        if(supid instanceof String && supplier instanceof ObjectId) removeBySupplierId((ObjectId) supplier, (String) supid, model.getObjectId());
+        if(id instanceof String) removeById((String) id, model.getObjectId());
+    }
+
+    @Override
+    public void changed(String collection) {
+        // Updates by filter rarely touch supid, supplier or id, lookups check the product they get
+    }
+
+    /**
+     * A supplier and the id of a product at that supplier
+     */
+    private static final class SupplierKey {
+
+        private final ObjectId supplier;
+        private final String supid;
+        private final int hash;
+
+        private SupplierKey(ObjectId supplier, String supid){
+            this.supplier = supplier;
+            this.supid = supid;
+            this.hash = 31 * supplier.hashCode() + supid.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof SupplierKey)) return false;
+            SupplierKey other = (SupplierKey) o;
+            return supplier.equals(other.supplier) && supid.equals(other.supid);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+}
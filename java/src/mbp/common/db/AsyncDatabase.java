@@ -0,0 +1,227 @@
+package mbp.common.db;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking variants of the {@link Database} operations, returning a CompletableFuture which completes on a worker
+ * thread. Independent lookups can be started together and joined afterwards:
+ * <pre>
+ *     CompletableFuture&lt;Product&gt; product = Database.async().get(productId, Product.class);
+ *     CompletableFuture&lt;Long&gt; count = Database.async().count(Product.class, filter);
+ * </pre>
+ * The work runs through the blocking Database methods on the worker thread, so errors are logged and result in the
+ * same null or 0 values. It runs outside the batch mode and unit of work of the calling thread.
+ * <p>
+ * Workers are virtual threads when the runtime supports them (Java 21), otherwise a pool sized to the connection pool.
+ */
+public class AsyncDatabase {
+
+    private static final Logger logger = Logger.getLogger(AsyncDatabase.class.getName());
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+
+    public AsyncDatabase(ExecutorService executor){
+        this.executor = executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("database-async-timer"));
+    }
+
+    /**
+     * Creates an executor running each task on a new virtual thread, or a fixed pool of the given size when virtual
+     * threads are not available
+     * @param poolSize  The number of platform threads to use when falling back to a pool
+     * @return          The executor
+     */
+    public static ExecutorService createExecutor(int poolSize){
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            logger.info("Virtual threads not available, using a pool of "+poolSize+" threads for async database calls");
+            return new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads("database-async"));
+        }
+    }
+
+    public <T extends Model> CompletableFuture<T> get(ObjectId objectId, Class<T> c){
+        return submit(db -> db.get(objectId, c));
+    }
+
+    public <T extends Model> CompletableFuture<T> get(ObjectId objectId, Class<T> c, long timeout, TimeUnit unit){
+        return submit(db -> db.get(objectId, c), timeout, unit);
+    }
+
+    public <T extends Model> CompletableFuture<T> get(String dbId, Class<T> c){
+        return submit(db -> db.get(dbId, c));
+    }
+
+    public <T extends Model> CompletableFuture<List<T>> getMany(Collection<ObjectId> objectIds, Class<T> c){
+        return submit(db -> db.getMany(objectIds, c));
+    }
+
+    public <T extends Model> CompletableFuture<T> findOne(Class<T> c, Document filter){
+        return submit(db -> db.findOne(c, filter));
+    }
+
+    public <T extends Model> CompletableFuture<T> findOne(Class<T> c, Document filter, long timeout, TimeUnit unit){
+        return submit(db -> db.findOne(c, filter), timeout, unit);
+    }
+
+    public CompletableFuture<Boolean> exists(Class c, Document filter){
+        return submit(db -> db.exists(c, filter));
+    }
+
+    /**
+     * Runs a query and reads all results on the worker thread
+     * @param c         The class for which to execute the query
+     * @param filter    The filter to use for this query
+     * @return          A future completing with the matching objects, or null when the query failed
+     */
+    public <T extends Model> CompletableFuture<List<T>> query(Class<T> c, Document filter){
+        return query(c, filter, null, 0);
+    }
+
+    /**
+     * Runs a query and reads all results on the worker thread
+     * @param c         The class for which to execute the query
+     * @param filter    The filter to use for this query
+     * @param sort      The sort order, or null
+     * @param limit     The maximum number of results, 0 for no limit
+     * @return          A future completing with the matching objects, or null when the query failed
+     */
+    public <T extends Model> CompletableFuture<List<T>> query(Class<T> c, Document filter, Document sort, int limit){
+        return submit(db -> readAll(db.query(c, filter), sort, limit));
+    }
+
+    public <T extends Model> CompletableFuture<List<T>> query(Class<T> c, Document filter, Document sort, int limit, long timeout, TimeUnit unit){
+        return submit(db -> readAll(db.query(c, filter), sort, limit), timeout, unit);
+    }
+
+    public CompletableFuture<Long> count(Class c, Document filter){
+        return submit(db -> db.count(c, filter));
+    }
+
+    public CompletableFuture<Long> count(Class c, Document filter, long timeout, TimeUnit unit){
+        return submit(db -> db.count(c, filter), timeout, unit);
+    }
+
+    public <T extends Model> CompletableFuture<T> save(T model){
+        return submit(db -> db.save(model));
+    }
+
+    public <T extends Model> CompletableFuture<T> save(T model, long timeout, TimeUnit unit){
+        return submit(db -> db.save(model), timeout, unit);
+    }
+
+    /**
+     * Runs any work against the Database instance of a worker thread
+     * @param work  The work to run
+     * @return      A future completing with the result of the work. Cancelling it interrupts the worker.
+     */
+    public <R> CompletableFuture<R> submit(Function<Database, R> work){
+        DatabaseFuture<R> future = new DatabaseFuture<>();
+        future.task = executor.submit(() -> {
+            if(future.isDone()) return;
+            try {
+                future.complete(work.apply(Database.getInstance()));
+            } catch (Throwable t) {
+                logger.warning("Async database call failed ("+t.getClass().getSimpleName()+"): "+t.getMessage());
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs any work against the Database instance of a worker thread, failing with a TimeoutException when it takes
+     * longer than the given time
+     * @param work      The work to run
+     * @param timeout   The maximum time to wait for the result
+     * @param unit      The unit of the timeout
+     * @return          A future completing with the result of the work
+     */
+    public <R> CompletableFuture<R> submit(Function<Database, R> work, long timeout, TimeUnit unit){
+        CompletableFuture<R> future = submit(work);
+        ScheduledFuture<?> timeoutTask = timer.schedule(
+                () -> future.completeExceptionally(new TimeoutException("Database call did not complete within "+timeout+" "+unit)),
+                timeout, unit);
+        future.whenComplete((result, error) -> timeoutTask.cancel(false));
+        return future;
+    }
+
+    /**
+     * Stops accepting work, running calls are allowed to finish
+     */
+    public void shutdown(){
+        executor.shutdown();
+        timer.shutdownNow();
+    }
+
+    private static <T extends Model> List<T> readAll(DatabaseResult<T> result, Document sort, int limit){
+        if(result == null) return null;
+        if(sort != null) result.sort(sort);
+        if(limit > 0) result.limit(limit);
+        List<T> models = new ArrayList<>();
+        for(T model : result){
+            if(Thread.currentThread().isInterrupted()) break;
+            if(model != null) models.add(model);
+        }
+        return models;
+    }
+
+    static ThreadFactory daemonThreads(String name){
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Future which interrupts the worker when it is cancelled or times out
+     */
+    private static class DatabaseFuture<R> extends CompletableFuture<R> {
+
+        private volatile Future<?> task;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<?> running = task;
+            if(running != null) running.cancel(true);
+            return cancelled;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            boolean completed = super.completeExceptionally(ex);
+            if(completed && ex instanceof TimeoutException){
+                Future<?> running = task;
+                if(running != null) running.cancel(true);
+            }
+            return completed;
+        }
+
+    }
+
+}
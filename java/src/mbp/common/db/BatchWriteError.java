@@ -0,0 +1,50 @@
+package mbp.common.db;
+
+/**
+ * A write from batch mode which could not be executed
+ */
+public class BatchWriteError {
+
+    private final String collection;
+    private final Model model;
+    private final int code;
+    private final String message;
+
+    public BatchWriteError(String collection, Model model, int code, String message){
+        this.collection = collection;
+        this.model = model;
+        this.code = code;
+        this.message = message;
+    }
+
+    /**
+     * @return The collection the write was queued for
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return The model that was saved or deleted, null for filter based updates and deletes
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * @return The server error code, or -1 when the write failed without a server response
+     */
+    public int getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return collection + (model != null && model.getObjectId() != null ? " (" + model.getObjectId().toHexString() + ")" : "") + ": [" + code + "] " + message;
+    }
+
+}
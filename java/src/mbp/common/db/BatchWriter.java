@@ -0,0 +1,184 @@
+package mbp.common.db;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Buffers the writes done in batch mode per collection and flushes them as ordered bulk writes. A queue is flushed
+ * when it reaches the configured number of operations or estimated bytes, and when the batch ends. Instances are
+ * bound to one thread through {@link Database}.
+ */
+public class BatchWriter {
+
+    private static final Logger logger = Logger.getLogger(BatchWriter.class.getName());
+    private static final BulkWriteOptions ORDERED = new BulkWriteOptions().ordered(true);
+
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder flushedOperations = new LongAdder();
+    private static final LongAdder failedOperations = new LongAdder();
+    private static final LongAdder flushNanos = new LongAdder();
+
+    private final int maxOperations;
+    private final long maxBytes;
+    private final Map<String, WriteQueue> queues = new LinkedHashMap<>();
+    private final List<BatchWriteError> errors = new ArrayList<>();
+
+    public BatchWriter(int maxOperations, long maxBytes){
+        this.maxOperations = Math.max(1, maxOperations);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Queues a write, flushing the queue of the collection when it is full
+     * @param db            The database to flush to
+     * @param collection    The collection name
+     * @param write         The write to queue
+     * @param model         The model the write belongs to, or null for filter based writes
+     * @param bytes         The estimated size of the write
+     */
+    public void add(MongoDatabase db, String collection, WriteModel<Document> write, Model model, long bytes){
+        WriteQueue queue = queues.get(collection);
+        if(queue == null){
+            queue = new WriteQueue();
+            queues.put(collection, queue);
+        }
+        queue.writes.add(write);
+        queue.models.add(model);
+        queue.bytes += bytes;
+        if(queue.writes.size() >= maxOperations || queue.bytes >= maxBytes){
+            flush(db, collection, queue);
+        }
+    }
+
+    /**
+     * Flushes all queued writes
+     * @param db    The database to flush to
+     */
+    public void flush(MongoDatabase db){
+        for(Map.Entry<String, WriteQueue> entry : queues.entrySet()){
+            flush(db, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return The number of writes waiting to be flushed
+     */
+    public int size(){
+        int size = 0;
+        for(WriteQueue queue : queues.values()) size += queue.writes.size();
+        return size;
+    }
+
+    /**
+     * @return The writes which failed since this writer was created
+     */
+    public List<BatchWriteError> getErrors(){
+        return Collections.unmodifiableList(errors);
+    }
+
+    private void flush(MongoDatabase db, String collection, WriteQueue queue){
+        if(queue.writes.isEmpty()) return;
+
+        long start = System.nanoTime();
+        int total = queue.writes.size();
+        int offset = 0;
+        // An ordered bulk write stops at the first failing write, the remainder is resubmitted so one bad item does not drop the rest
+        while(offset < total){
+            List<WriteModel<Document>> writes = queue.writes.subList(offset, total);
+            try {
+                db.getCollection(collection).bulkWrite(writes, ORDERED);
+                offset = total;
+            } catch (MongoBulkWriteException e) {
+                int next = total;
+                for(BulkWriteError error : e.getWriteErrors()){
+                    int index = offset + error.getIndex();
+                    addError(collection, queue.models.get(index), error.getCode(), error.getMessage());
+                    next = Math.min(next, index + 1);
+                }
+                offset = next;
+            } catch (Exception e) {
+                logger.warning("Could not flush "+(total - offset)+" batched writes to "+collection+": "+e.getMessage());
+                for(int i = offset; i < total; i++){
+                    addError(collection, queue.models.get(i), -1, e.getMessage());
+                }
+                offset = total;
+            }
+        }
+
+        flushes.increment();
+        flushedOperations.add(total);
+        flushNanos.add(System.nanoTime() - start);
+
+        // Reads between queueing and flushing may have cached the previous version
+        EntityCache entityCache = Database.getEntityCache();
+        if(entityCache.isEnabled(collection)){
+            for(Model model : queue.models){
+                if(model != null){
+                    entityCache.invalidate(collection, model.getObjectId());
+                } else {
+                    entityCache.invalidateAll(collection);
+                    break;
+                }
+            }
+        }
+
+        queue.writes.clear();
+        queue.models.clear();
+        queue.bytes = 0;
+    }
+
+    private void addError(String collection, Model model, int code, String message){
+        BatchWriteError error = new BatchWriteError(collection, model, code, message);
+        logger.warning("Batched write failed: "+error);
+        errors.add(error);
+        failedOperations.increment();
+    }
+
+    /**
+     * @return The number of bulk writes executed by all batch writers
+     */
+    public static long getFlushCount(){
+        return flushes.sum();
+    }
+
+    /**
+     * @return The number of writes flushed by all batch writers, including failed writes
+     */
+    public static long getFlushedOperations(){
+        return flushedOperations.sum();
+    }
+
+    /**
+     * @return The number of writes which failed
+     */
+    public static long getFailedOperations(){
+        return failedOperations.sum();
+    }
+
+    /**
+     * @return The total time spent flushing, in milliseconds
+     */
+    public static long getFlushTime(){
+        return TimeUnit.NANOSECONDS.toMillis(flushNanos.sum());
+    }
+
+    private static class WriteQueue {
+        private final List<WriteModel<Document>> writes = new ArrayList<>();
+        private final List<Model> models = new ArrayList<>();
+        private long bytes = 0;
+    }
+
+}
@@ -0,0 +1,105 @@
+package mbp.common.db;
+
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool gauges for the shared MongoClient, fed by the driver's pool events
+ */
+public class ConnectionPoolStats extends ConnectionPoolListenerAdapter {
+
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong waiting = new AtomicLong();
+    private final AtomicLong open = new AtomicLong();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder checkouts = new LongAdder();
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        inUse.incrementAndGet();
+        checkouts.increment();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        inUse.decrementAndGet();
+    }
+
+    @Override
+    public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+        waiting.incrementAndGet();
+    }
+
+    @Override
+    public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+        waiting.decrementAndGet();
+    }
+
+    @Override
+    public void connectionAdded(ConnectionAddedEvent event) {
+        open.incrementAndGet();
+        created.increment();
+    }
+
+    @Override
+    public void connectionRemoved(ConnectionRemovedEvent event) {
+        open.decrementAndGet();
+    }
+
+    /**
+     * @return The number of connections currently checked out of the pool
+     */
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return The number of threads currently waiting for a connection
+     */
+    public long getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return The number of connections currently open, idle or in use
+     */
+    public long getOpen() {
+        return open.get();
+    }
+
+    /**
+     * @return The number of connections created since startup
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * @return The number of connection checkouts since startup
+     */
+    public long getCheckouts() {
+        return checkouts.sum();
+    }
+
+    void reset() {
+        inUse.set(0);
+        waiting.set(0);
+        open.set(0);
+        created.reset();
+        checkouts.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "inUse=" + getInUse() + ", waiting=" + getWaiting() + ", open=" + getOpen() + ", created=" + getCreated();
+    }
+
+}
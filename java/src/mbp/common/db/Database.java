@@ -1,16 +1,38 @@
 package mbp.common.db;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
 import com.wwk.meubelplan.common.db.SelectionFilter;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.types.ObjectId;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import static java.util.Arrays.asList;
@@ -23,17 +45,28 @@ public class Database {
     private static final Logger logger = Logger.getLogger("Database");
     private static int maxRetries = 5;
 
-    private MongoClient mongoClient;
+    private static final Object clientLock = new Object();
+    private static final ConnectionPoolStats poolStats = new ConnectionPoolStats();
+    private static final EntityCache entityCache = new EntityCache();
+    private static final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+    private static volatile DatabaseConfig config = new DatabaseConfig();
+    private static volatile MongoClient mongoClient;
+    private static volatile MongoDatabase sharedDb;
+    private static volatile AsyncDatabase asyncDatabase;
+
+    private static final ThreadLocal<Database> instance = new ThreadLocal<>();
+    private static final Document ID_ONLY = new Document("_id", 1);
+
     private MongoDatabase db;
 
     private boolean batchMode = false;
+    private BatchWriter batchWriter;
+    private UnitOfWork unitOfWork;
 
     private String dbaseLocation = "remote:localhost/meubelplan-develop-2";
     private String username = "admin";
     private String password = "admin";
 
-    private static ThreadLocal<Database> instance;
-
     /**
      * Saves current instance in
      */
@@ -45,23 +78,184 @@ public class Database {
     }
 
     /**
-     * Gets a database instance
+     * Gets a database instance. Instances only hold per-thread state (batch mode), the connection pool is shared by
+     * all threads.
      * @return A database instance
      */
     public static Database getInstance(String username, String password){
-        if(instance == null){
-            instance = new ThreadLocal<>();
+        Database database = instance.get();
+        if(database == null){
+            database = new Database(username, password);
+            instance.set(database);
         }
-        if(instance.get() == null){
-            instance.set(new Database(username, password));
-        }
-        return instance.get();
+        return database;
     }
 
     public static Database getInstance(){
         return getInstance(null, null);
     }
 
+    /**
+     * Creates the shared client using the given configuration. Should be called once when the application starts,
+     * when it is not called the client is created with the default configuration on first use.
+     * @param databaseConfig    The configuration to use for the shared client
+     */
+    public static void startup(DatabaseConfig databaseConfig){
+        synchronized (clientLock) {
+            if(mongoClient != null){
+                logger.warning("Database already started, restarting with new configuration");
+                shutdown();
+            }
+            config = databaseConfig != null ? databaseConfig : new DatabaseConfig();
+            getSharedDatabase();
+        }
+    }
+
+    /**
+     * Closes the shared client and all pooled connections. Should be called when the application stops.
+     */
+    public static void shutdown(){
+        synchronized (clientLock) {
+            if(mongoClient != null){
+                logger.info("Closing shared database client ("+poolStats+")");
+                try {
+                    mongoClient.close();
+                } catch (Exception e){
+                    logger.warning("Error closing database client ["+e.getClass().getCanonicalName()+"]: "+e.getMessage());
+                }
+            }
+            if(asyncDatabase != null){
+                asyncDatabase.shutdown();
+                asyncDatabase = null;
+            }
+            mongoClient = null;
+            sharedDb = null;
+            poolStats.reset();
+        }
+    }
+
+    /**
+     * @return The gauges of the shared connection pool
+     */
+    public static ConnectionPoolStats getPoolStats(){
+        return poolStats;
+    }
+
+    /**
+     * Returns the asynchronous variants of the database operations, see {@link AsyncDatabase}
+     * @return The shared async facade
+     */
+    public static AsyncDatabase async(){
+        AsyncDatabase async = asyncDatabase;
+        if(async == null){
+            synchronized (clientLock) {
+                if(asyncDatabase == null){
+                    asyncDatabase = new AsyncDatabase(AsyncDatabase.createExecutor(config.getMaxPoolSize()));
+                }
+                async = asyncDatabase;
+            }
+        }
+        return async;
+    }
+
+    /**
+     * Returns the process-wide entity cache, collections are only cached after they have been configured on it
+     * @return The entity cache used by get and getMany
+     */
+    public static EntityCache getEntityCache(){
+        return entityCache;
+    }
+
+    /**
+     * Registers a listener which is told about every write made through any Database instance of this process
+     * @param listener  The listener
+     */
+    public static void addWriteListener(WriteListener listener){
+        if(listener != null) writeListeners.add(listener);
+    }
+
+    public static void removeWriteListener(WriteListener listener){
+        writeListeners.remove(listener);
+    }
+
+    private static void fireSaved(Model model){
+        for(WriteListener listener : writeListeners){
+            try {
+                listener.saved(model);
+            } catch (Exception e){
+                logger.warning("Write listener failed on save of "+model.getClassName()+": "+e.getMessage());
+            }
+        }
+    }
+
+    private static void fireDeleted(Model model){
+        for(WriteListener listener : writeListeners){
+            try {
+                listener.deleted(model);
+            } catch (Exception e){
+                logger.warning("Write listener failed on delete of "+model.getClassName()+": "+e.getMessage());
+            }
+        }
+    }
+
+    private static void fireChanged(String collection){
+        for(WriteListener listener : writeListeners){
+            try {
+                listener.changed(collection);
+            } catch (Exception e){
+                logger.warning("Write listener failed on change of "+collection+": "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The configuration of the shared client
+     */
+    public static DatabaseConfig getConfig(){
+        return config;
+    }
+
+    /**
+     * Returns the number of calls per Database method since startup, see {@link DatabaseMetrics} for the numbers per
+     * collection and latencies
+     * @return A map from method name to number of calls
+     */
+    public static Map<String, Long> getCallCounts(){
+        Map<String, Long> counts = new TreeMap<>();
+        for(OperationSnapshot snapshot : DatabaseMetrics.snapshot()){
+            if(DatabaseMetrics.ITERATE.equals(snapshot.getOperation())) continue;
+            Long count = counts.get(snapshot.getOperation());
+            counts.put(snapshot.getOperation(), (count != null ? count : 0L) + snapshot.getCalls());
+        }
+        return counts;
+    }
+
+    private static MongoDatabase getSharedDatabase(){
+        MongoDatabase database = sharedDb;
+        if(database == null){
+            synchronized (clientLock) {
+                if(sharedDb == null){
+                    DatabaseConfig databaseConfig = config;
+                    MongoClientOptions.Builder options = MongoClientOptions.builder()
+                            .connectionsPerHost(databaseConfig.getMaxPoolSize())
+                            .minConnectionsPerHost(databaseConfig.getMinPoolSize())
+                            .threadsAllowedToBlockForConnectionMultiplier(databaseConfig.getWaitQueueMultiplier())
+                            .maxWaitTime(databaseConfig.getMaxWaitTime())
+                            .maxConnectionIdleTime(databaseConfig.getMaxConnectionIdleTime())
+                            .maxConnectionLifeTime(databaseConfig.getMaxConnectionLifeTime())
+                            .addConnectionPoolListener(poolStats)
+                            .codecRegistry(CodecRegistries.fromRegistries(MongoClient.getDefaultCodecRegistry(),
+                                    CodecRegistries.fromProviders(new ModelCodecProvider())));
+                    mongoClient = new MongoClient(new MongoClientURI(databaseConfig.getConnectionString(), options));
+                    sharedDb = mongoClient.getDatabase(databaseConfig.getDatabaseName());
+                    logger.info("Started shared database client, pool size "+databaseConfig.getMaxPoolSize());
+                }
+                database = sharedDb;
+            }
+        }
+        return database;
+    }
+
     /**
      * Opens a new connection to the database
      */
@@ -70,31 +264,98 @@ public class Database {
     }
 
     /**
-     * Opens a new connection to the database
+     * Opens a new connection to the database. Connections are taken from the shared pool per operation, this only
+     * binds the shared database (which changes after a restart) to this instance.
      */
     public void openDatabase(Boolean force){
-        if(mongoClient == null){
-            mongoClient = new MongoClient();
-        }
-        if(db == null || force) db = mongoClient.getDatabase("mbp");
+        db = getSharedDatabase();
     }
 
     /**
-     * Start batch mode, database will not be closed until batch mode ends
+     * Start batch mode, database will not be closed until batch mode ends. While in batch mode, saves, updates and
+     * deletes on this thread are queued per collection and written as ordered bulk writes. Queued writes are not
+     * visible to reads until they are flushed.
      */
     public void startBatch(){
         openDatabase();
+        if(batchMode) flushBatch();
         batchMode = true;
+        batchWriter = new BatchWriter(config.getBatchMaxOperations(), config.getBatchMaxBytes());
     }
 
     /**
-     * Ends batch mode, closing the database
+     * Ends batch mode, flushing all queued writes and closing the database
      */
     public void endBatch(){
+        flushBatch();
         batchMode = false;
         closeDatabase();
     }
 
+    /**
+     * Writes all writes queued in batch mode to the database
+     */
+    public void flushBatch(){
+        if(batchWriter != null){
+            openDatabase();
+            batchWriter.flush(db);
+        }
+    }
+
+    /**
+     * Whether this thread is in batch mode
+     * @return  True when writes are queued
+     */
+    public boolean isBatchMode(){
+        return batchMode;
+    }
+
+    /**
+     * Returns the writes which failed in the current or last batch, each error refers to the model it was written for
+     * @return  The failed writes, empty when all writes succeeded
+     */
+    public List<BatchWriteError> getBatchErrors(){
+        if(batchWriter == null) return new ArrayList<>(0);
+        return batchWriter.getErrors();
+    }
+
+    private void queueWrite(String collection, WriteModel<Document> write, Model model, long bytes){
+        openDatabase();
+        batchWriter.add(db, collection, write, model, bytes);
+    }
+
+    /**
+     * Starts a unit of work on this thread. Until it ends, get, getMany and findOne return the instance already
+     * loaded for an id instead of querying the database again, and writes update or evict those instances. Calls
+     * can be nested, the unit of work ends with the outermost endUnitOfWork.
+     * @return The current unit of work
+     */
+    public UnitOfWork beginUnitOfWork(){
+        if(unitOfWork == null) unitOfWork = new UnitOfWork();
+        unitOfWork.enter();
+        return unitOfWork;
+    }
+
+    /**
+     * Ends the unit of work on this thread
+     * @return The unit of work that was ended or left, for its hit and miss counts, or null if none was started
+     */
+    public UnitOfWork endUnitOfWork(){
+        UnitOfWork current = unitOfWork;
+        if(current != null && current.leave() <= 0){
+            unitOfWork = null;
+            logger.fine("Unit of work ended ("+current+")");
+        }
+        return current;
+    }
+
+    /**
+     * @return The unit of work on this thread, or null when none is active
+     */
+    public UnitOfWork getUnitOfWork(){
+        return unitOfWork;
+    }
+
     /**
      * Creates a new instance from an entity which can be used in the database
      * @param c         The class of the entity to find an instance from (use entities within com.wwk.webshopconnect.entities)
@@ -104,7 +365,7 @@ public class Database {
         T result = null;
         try{
             openDatabase();
-            result = c.newInstance();
+            result = ModelFactory.newInstance(c);
         }catch (Exception e){
             logger.warning("Could not create new database entity instance: "+e.getMessage());
             e.printStackTrace();
@@ -134,25 +395,307 @@ public class Database {
      */
     public <T extends Model> T get(ObjectId objectId, Class<T> c){
         if(objectId == null) return null;
+        if(unitOfWork != null){
+            T result = unitOfWork.get(c, objectId);
+            if(result == null){
+                result = load(objectId, c, true);
+                unitOfWork.put(result);
+            }
+            return result;
+        }
+        return load(objectId, c, true);
+    }
+
+    /**
+     * Retrieves an object from the database with the fields of a view profile. An object in the unit of work or the
+     * entity cache is returned whole, otherwise only the fields of the profile are read and the object can not be
+     * saved.
+     * @param objectId  The database recordId of the object which is requested
+     * @param profile   The view profile, or null to load the whole document
+     * @return The request object
+     */
+    public <T extends Model> T get(ObjectId objectId, Class<T> c, ViewProfile profile){
+        if(profile == null || !profile.isPartial()) return get(objectId, c);
+        if(objectId == null) return null;
+        T known = unitOfWork != null ? unitOfWork.peek(c, objectId) : null;
+        if(known != null) return known;
+        T cached = entityCache.get(c, objectId);
+        if(cached != null) return cached;
+        return findOne(c, new Document("_id", objectId), profile);
+    }
+
+    /**
+     * Retrieves an object from the database, optionally reading it lazily: the model keeps the raw BSON and decodes a
+     * field when it is first read, see {@link LazyDocument}. Lazily read objects are not added to the entity cache,
+     * which would decode them completely.
+     * @param objectId  The database recordId of the object which is requested
+     * @param lazy      Whether to decode fields on first read
+     * @return The request object
+     */
+    public <T extends Model> T get(ObjectId objectId, Class<T> c, boolean lazy){
+        if(!lazy) return get(objectId, c);
+        if(objectId == null) return null;
+        if(unitOfWork != null){
+            T result = unitOfWork.get(c, objectId);
+            if(result == null){
+                result = loadLazy(objectId, c);
+                unitOfWork.put(result);
+            }
+            return result;
+        }
+        return loadLazy(objectId, c);
+    }
+
+    private <T extends Model> T loadLazy(ObjectId objectId, Class<T> c){
+        T cached = entityCache.get(c, objectId);
+        if(cached != null) return cached;
+        long start = System.nanoTime();
+        boolean failed = false;
+        long bytes = 0;
+        T result = null;
+        try{
+            openDatabase();
+            RawBsonDocument raw = db.getCollection(c.getSimpleName(), RawBsonDocument.class).find(new Document("_id", objectId)).limit(1).first();
+            if(raw != null){
+                LazyDocument document = new LazyDocument(raw);
+                result = ModelFactory.hydrate(c, document);
+                result.setDecodedSize(document.getEncodedSize());
+                bytes = DatabaseMetrics.sizeOf(result);
+            } else {
+                logger.info("Could not find document of type "+c.getSimpleName()+" with objectId "+objectId.toHexString());
+            }
+        }catch (Exception e){
+            failed = true;
+            logger.warning("Could not load object from database ("+e.getClass().getSimpleName()+"): " + e.getMessage());
+        }finally{
+            DatabaseMetrics.record(c.getSimpleName(), "get", System.nanoTime() - start, failed, result != null ? 1 : 0, bytes);
+            closeDatabase();
+        }
+        return result;
+    }
+
+    /**
+     * Reads an object from the entity cache or the database, bypassing the unit of work
+     * @param objectId  The database recordId of the object which is requested
+     * @param useCache  Whether the object may come from the entity cache
+     * @return The request object
+     */
+    private <T extends Model> T load(ObjectId objectId, Class<T> c, boolean useCache){
+        if(useCache){
+            T cached = entityCache.get(c, objectId);
+            if(cached != null) return cached;
+        }
+        long start = System.nanoTime();
+        boolean failed = false;
+        long bytes = 0;
         T result = null;
+        long generation = entityCache.generation(c.getSimpleName());
         try{
             openDatabase();
-            FindIterable<Document> iterable = db.getCollection(c.getSimpleName()).find(new Document("_id", objectId)).limit(1);
-            Document document = iterable.first();
-            if(document != null){
-                result = c.newInstance();
-                result.setDocument(document);
+            result = db.getCollection(c.getSimpleName(), c).find(new Document("_id", objectId)).limit(1).first();
+            if(result != null){
+                bytes = DatabaseMetrics.sizeOf(result);
+                entityCache.put(result, generation);
             } else {
                 logger.info("Could not find document of type "+c.getSimpleName()+" with objectId "+objectId.toHexString());
             }
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not load object from database ("+e.getClass().getSimpleName()+"): " + e.getMessage());
         }finally{
+            DatabaseMetrics.record(c.getSimpleName(), "get", System.nanoTime() - start, failed, result != null ? 1 : 0, bytes);
+            closeDatabase();
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves multiple objects by id, using one $in query per chunk of ids
+     * @param objectIds The database ids of the requested objects
+     * @param c         The class of the requested objects
+     * @return          The objects in the order of the given ids, with null for ids which could not be found
+     */
+    public <T extends Model> List<T> getMany(Collection<ObjectId> objectIds, Class<T> c){
+        return getMany(objectIds, c, null);
+    }
+
+    /**
+     * Retrieves multiple objects by id, using one $in query per chunk of ids
+     * @param objectIds     The database ids of the requested objects
+     * @param c             The class of the requested objects
+     * @param projection    The fields to load, or null to load the whole documents
+     * @return              The objects in the order of the given ids, with null for ids which could not be found. An id
+     *                      which is requested more than once results in the same instance at each position.
+     */
+    public <T extends Model> List<T> getMany(Collection<ObjectId> objectIds, Class<T> c, Document projection){
+        if(objectIds == null) return null;
+        long start = System.nanoTime();
+        boolean failed = false;
+        long[] read = new long[2];
+
+        Map<ObjectId, T> found = new HashMap<>(objectIds.size() * 2);
+        List<ObjectId> chunk = new ArrayList<>(Math.min(objectIds.size(), config.getMultiGetChunkSize()));
+        try{
+            openDatabase();
+            for(ObjectId objectId : objectIds){
+                if(objectId == null || found.containsKey(objectId)) continue;
+                T known = unitOfWork != null ? unitOfWork.get(c, objectId) : null;
+                if(known == null){
+                    known = entityCache.get(c, objectId);
+                    if(known != null && unitOfWork != null) unitOfWork.put(known);
+                }
+                found.put(objectId, known);
+                if(known != null) continue;
+                chunk.add(objectId);
+                if(chunk.size() >= config.getMultiGetChunkSize()){
+                    getChunk(chunk, c, projection, found, read);
+                    chunk.clear();
+                }
+            }
+            if(!chunk.isEmpty()) getChunk(chunk, c, projection, found, read);
+        }catch (Exception e){
+            failed = true;
+            logger.warning("Could not load objects from database ("+e.getClass().getSimpleName()+"): " + e.getMessage());
+        }finally{
+            DatabaseMetrics.record(c.getSimpleName(), "getMany", System.nanoTime() - start, failed, read[0], read[1]);
+            closeDatabase();
+        }
+
+        List<T> result = new ArrayList<>(objectIds.size());
+        for(ObjectId objectId : objectIds){
+            result.add(objectId != null ? found.get(objectId) : null);
+        }
+        return result;
+    }
+
+    /**
+     * Loads one chunk of ids
+     * @param read  Counts the documents (index 0) and bytes (index 1) read
+     */
+    private <T extends Model> void getChunk(List<ObjectId> objectIds, Class<T> c, Document projection, Map<ObjectId, T> found, long[] read) throws Exception {
+        long generation = entityCache.generation(c.getSimpleName());
+        FindIterable<T> iterable = db.getCollection(c.getSimpleName(), c).find(Filters.in("_id", objectIds));
+        ViewProfile projected = null;
+        if(projection != null){
+            iterable.projection(projection);
+            projected = ViewProfile.projected(projection);
+        }
+        for(T model : iterable){
+            read[0]++;
+            read[1] += DatabaseMetrics.sizeOf(model);
+            // A projected model can not be saved, it would replace the stored document with the loaded fields
+            if(projected != null) model.setViewProfile(projected);
+            found.put(model.getObjectId(), model);
+            // Partially loaded models would hide the full model from later lookups
+            if(projection == null){
+                entityCache.put(model, generation);
+                if(unitOfWork != null) unitOfWork.put(model);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the first object matching a filter, in a single round trip
+     * @param tClass    The class of the object to find
+     * @param filter    The filter to use
+     * @return          The first matching object or null when nothing matches
+     */
+    public <T extends Model> T findOne(Class<T> tClass, Document filter){
+        return findOne(tClass, filter, null, null);
+    }
+
+    /**
+     * Retrieves the first object matching a filter, in a single round trip
+     * @param tClass        The class of the object to find
+     * @param filter        The filter to use
+     * @param projection    The fields to load, or null to load the whole document
+     * @return              The first matching object or null when nothing matches
+     */
+    public <T extends Model> T findOne(Class<T> tClass, Document filter, Document projection){
+        return findOne(tClass, filter, projection, null);
+    }
+
+    /**
+     * Retrieves the first object matching a filter with the fields of a view profile. A model loaded under a partial
+     * profile is not cached and can not be saved.
+     * @param tClass    The class of the object to find
+     * @param filter    The filter to use
+     * @param profile   The view profile, or null to load the whole document
+     * @return          The first matching object or null when nothing matches
+     */
+    public <T extends Model> T findOne(Class<T> tClass, Document filter, ViewProfile profile){
+        return findOne(tClass, filter, profile != null ? profile.getProjection() : null, profile);
+    }
+
+    private <T extends Model> T findOne(Class<T> tClass, Document filter, Document projection, ViewProfile profile){
+        long start = System.nanoTime();
+        boolean failed = false;
+        T found = null;
+        T result = null;
+        long generation = entityCache.generation(tClass.getSimpleName());
+        try{
+            openDatabase();
+            FindIterable<T> iterable = db.getCollection(tClass.getSimpleName(), tClass).find(filter).limit(1);
+            if(projection != null) iterable.projection(projection);
+            found = iterable.first();
+            if(found != null){
+                T known = unitOfWork != null ? unitOfWork.peek(tClass, found.getObjectId()) : null;
+                if(known != null) return known;
+                result = found;
+                if(profile != null){
+                    result.setViewProfile(profile);
+                } else if(projection != null){
+                    // A projected model can not be saved, it would replace the stored document with the loaded fields
+                    result.setViewProfile(ViewProfile.projected(projection));
+                }
+                if(projection == null){
+                    entityCache.put(result, generation);
+                    if(unitOfWork != null) unitOfWork.put(result);
+                }
+            }
+        }catch (Exception e){
+            failed = true;
+            logger.warning("Could not find object of class "+tClass.getSimpleName()+" ("+e.getClass().getSimpleName()+"): " + e.getMessage());
+        }finally{
+            long elapsed = System.nanoTime() - start;
+            DatabaseMetrics.record(tClass.getSimpleName(), "findOne", elapsed, failed, found != null ? 1 : 0, DatabaseMetrics.sizeOf(found));
+            if(SlowQueryLog.isSlow(elapsed)){
+                SlowQueryLog.record(tClass.getSimpleName(), "findOne", filter, null, projection, 0, 1, elapsed,
+                        SlowQueryLog.findCommand(tClass.getSimpleName(), filter, null, projection, 0, 1));
+            }
             closeDatabase();
         }
         return result;
     }
 
+    /**
+     * Checks whether any object matches a filter. Stops at the first match and only loads its id.
+     * @param tClass    The class to check
+     * @param filter    The filter to use
+     * @return          True when at least one object matches
+     */
+    public boolean exists(Class tClass, Document filter){
+        long start = System.nanoTime();
+        boolean failed = false;
+        boolean exists = false;
+        try{
+            openDatabase();
+            exists = db.getCollection(tClass.getSimpleName()).find(filter).projection(ID_ONLY).limit(1).first() != null;
+        }catch (Exception e){
+            failed = true;
+            logger.warning("Could not check existence of class "+tClass.getSimpleName()+", reason: "+e.getMessage());
+        }finally{
+            long elapsed = System.nanoTime() - start;
+            DatabaseMetrics.record(tClass.getSimpleName(), "exists", elapsed, failed, exists ? 1 : 0, 0);
+            if(SlowQueryLog.isSlow(elapsed)){
+                SlowQueryLog.record(tClass.getSimpleName(), "exists", filter, null, ID_ONLY, 0, 1, elapsed,
+                        SlowQueryLog.findCommand(tClass.getSimpleName(), filter, null, ID_ONLY, 0, 1));
+            }
+            closeDatabase();
+        }
+        return exists;
+    }
+
     /**
      * Retrieves an document from the database
      * @param objectId The database recordId of the object which is requested
@@ -169,13 +712,41 @@ public class Database {
      * @return          DatabaseIterator An iterator which can be used to iterate over the resulting objects
      */
     public <T extends Model> DatabaseResult<T> getALL(Class<T> tClass){
+        long start = System.nanoTime();
+        boolean failed = false;
         try {
             openDatabase();
-            return new DatabaseResult<>(tClass, db.getCollection(tClass.getSimpleName()).find());
+            return new DatabaseResult<>(tClass, db.getCollection(tClass.getSimpleName()), new Document());
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not browse class in database: "+e.getMessage());
             e.printStackTrace();
         }finally{
+            DatabaseMetrics.record(tClass.getSimpleName(), "getALL", System.nanoTime() - start, failed, 0, 0);
+            closeDatabase();
+        }
+        return null;
+    }
+
+    /**
+     * Splits the objects matching a filter into _id ranges which can be read concurrently, for jobs which read a
+     * whole collection, see {@link PartitionedScan}
+     * @param tClass        The class to scan
+     * @param filter        The filter, or null to scan all objects
+     * @param partitions    The number of partitions, for example the number of cores
+     * @return              The scan, or null when the split points could not be read
+     */
+    public <T extends Model> PartitionedScan<T> scan(Class<T> tClass, Document filter, int partitions){
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            openDatabase();
+            return PartitionedScan.create(tClass, db.getCollection(tClass.getSimpleName()), filter, partitions);
+        }catch (Exception e){
+            failed = true;
+            logger.warning("Could not partition "+tClass.getSimpleName()+": "+e.getMessage());
+        }finally{
+            DatabaseMetrics.record(tClass.getSimpleName(), "scan", System.nanoTime() - start, failed, 0, 0);
             closeDatabase();
         }
         return null;
@@ -199,13 +770,17 @@ public class Database {
      * @return          A list of objects matching the query, of the given class type
      */
     public <T extends Model> DatabaseResult<T> query(Class<T> tClass, Document filter, int retries){
+        long start = System.nanoTime();
+        boolean failed = false;
         try {
             openDatabase();
-            return new DatabaseResult<>(tClass, db.getCollection(tClass.getSimpleName()).find(filter));
+            return new DatabaseResult<>(tClass, db.getCollection(tClass.getSimpleName()), filter);
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not query database: "+e.getMessage());
             e.printStackTrace();
         }finally{
+            DatabaseMetrics.record(tClass.getSimpleName(), "query", System.nanoTime() - start, failed, 0, 0);
             closeDatabase();
         }
         return null;
@@ -231,6 +806,8 @@ public class Database {
      * @return          Found documents
      */
     public <T extends Model> AggregateIterable<Document> aggregate(Class<T> tClass, Document group, Document filter){
+        long start = System.nanoTime();
+        boolean failed = false;
         try {
             openDatabase();
             if(filter != null) {
@@ -239,9 +816,11 @@ public class Database {
                 return db.getCollection(tClass.getSimpleName()).aggregate(asList(new Document("$group", group)));
             }
         } catch (Exception e) {
+            failed = true;
             logger.warning("Could not query database: "+e.getMessage());
             e.printStackTrace();
         } finally {
+            DatabaseMetrics.record(tClass.getSimpleName(), "aggregate", System.nanoTime() - start, failed, 0, 0);
             closeDatabase();
         }
         return null;
@@ -263,13 +842,17 @@ public class Database {
      * @return          A list of objects matching the query, of the given class type
      */
     public FindIterable<Document> queryDocuments(Document filter, Class dClass, int retries){
+        long start = System.nanoTime();
+        boolean failed = false;
         try {
             openDatabase();
             return db.getCollection(dClass.getSimpleName()).find(filter);
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not query (documents) database: "+e.getMessage());
             e.printStackTrace();
         }finally{
+            DatabaseMetrics.record(dClass.getSimpleName(), "queryDocuments", System.nanoTime() - start, failed, 0, 0);
             closeDatabase();
         }
         return null;
@@ -297,6 +880,23 @@ public class Database {
         return null;
     }
 
+    /**
+     * Explains a query command, used by the {@link SlowQueryLog}
+     * @param command   The find or count command to explain
+     * @return          The query planner output, or null when the command could not be explained
+     */
+    Document explain(Document command){
+        try {
+            openDatabase();
+            return db.runCommand(new Document("explain", command).append("verbosity", "queryPlanner"));
+        }catch (Exception e){
+            logger.info("Could not explain "+command.toJson()+": "+e.getMessage());
+        }finally {
+            closeDatabase();
+        }
+        return null;
+    }
+
     /**
      * Create a new index with default type for the given class and property
      * @param className     The name of the class to add the index for
@@ -310,18 +910,100 @@ public class Database {
      * Create a new index with specified type for the given class and property
      * @param className     The name of the class to add the index for
      * @param property      The property to add the index for
-     * @param type          The type of index to create
+     * @param type          The type of index to create: notunique, unique, sparse, unique_sparse or fulltext
      */
     public void createIndex(String className, String property, String type){
+        IndexDefinition definition;
+        if("fulltext".equalsIgnoreCase(type) || "text".equalsIgnoreCase(type)){
+            definition = IndexDefinition.text(property);
+        } else {
+            definition = IndexDefinition.ascending(property);
+            if("unique".equalsIgnoreCase(type) || "unique_sparse".equalsIgnoreCase(type)) definition.unique();
+            if("sparse".equalsIgnoreCase(type) || "unique_sparse".equalsIgnoreCase(type)) definition.sparse();
+        }
+        createIndex(className, definition);
+    }
+
+    /**
+     * Create a new index for the given class
+     * @param className     The name of the class to add the index for
+     * @param definition    The index to create
+     * @return              True if the index exists after this call
+     */
+    public boolean createIndex(String className, IndexDefinition definition){
+        long start = System.nanoTime();
+        boolean created = false;
         try {
             openDatabase();
-            // TODO Create index
+            db.getCollection(className).createIndex(definition.getKeys(), definition.toIndexOptions());
+            created = true;
         }catch (Exception e){
-            logger.warning("Could not create index: "+e.getMessage());
+            logger.warning("Could not create index "+definition+" on "+className+": "+e.getMessage());
             e.printStackTrace();
         }finally {
+            DatabaseMetrics.record(className, "createIndex", System.nanoTime() - start, !created, 0, 0);
             closeDatabase();
         }
+        return created;
+    }
+
+    /**
+     * Makes sure the indexes declared by a model class exist
+     * @param tClass    The model class, its getIndexDefinitions declares the indexes
+     * @return          The differences between the declared and existing indexes, empty when they match
+     */
+    public <T extends Model> List<String> ensureIndexes(Class<T> tClass){
+        T model = newEntityInstance(tClass);
+        List<IndexDefinition> definitions = model != null ? model.getIndexDefinitions() : null;
+        return ensureIndexes(tClass, definitions != null ? definitions : new ArrayList<>(0));
+    }
+
+    /**
+     * Makes sure the given indexes exist. Missing indexes are created. Existing indexes are never changed or
+     * dropped: indexes which differ from their declaration, and indexes which are not declared, are reported.
+     * @param tClass        The model class to create the indexes for
+     * @param definitions   The indexes the class needs
+     * @return              The differences between the declared and existing indexes, empty when they match
+     */
+    public <T extends Model> List<String> ensureIndexes(Class<T> tClass, List<IndexDefinition> definitions){
+        String collection = tClass.getSimpleName();
+        List<String> drift = new ArrayList<>();
+        List<Document> existing = new ArrayList<>();
+        try {
+            openDatabase();
+            db.getCollection(collection).listIndexes().into(existing);
+        }catch (Exception e){
+            logger.warning("Could not list indexes of "+collection+": "+e.getMessage());
+            drift.add("Could not list indexes: "+e.getMessage());
+            return drift;
+        }finally {
+            closeDatabase();
+        }
+
+        List<Document> declared = new ArrayList<>();
+        for(IndexDefinition definition : definitions){
+            Document match = null;
+            for(Document index : existing){
+                if(definition.hasSameKeys(index)) match = index;
+            }
+            if(match == null){
+                logger.info("Creating index "+definition+" on "+collection);
+                if(!createIndex(collection, definition)) drift.add("Missing index "+definition+" could not be created");
+            } else {
+                declared.add(match);
+                String differences = definition.getOptionDifferences(match);
+                if(differences != null) drift.add("Index "+match.getString("name")+" differs from declaration: "+differences);
+            }
+        }
+        for(Document index : existing){
+            if(!declared.contains(index) && !"_id_".equals(index.getString("name"))){
+                drift.add("Index "+index.getString("name")+" "+index.get("key")+" is not declared");
+            }
+        }
+        for(String difference : drift){
+            logger.warning("Index drift on "+collection+": "+difference);
+        }
+        return drift;
     }
 
     /**
@@ -331,10 +1013,14 @@ public class Database {
      * @return The bound object if successful or null if not successful
      */
     public <T extends Model> T save(T dbObject){
-        if(dbObject == null || dbObject.getDocument() == null){
+        if(dbObject == null || !dbObject.hasDocument()){
             logger.warning("Trying to store null!");
             return null;
         }
+        if(dbObject.isPartial()){
+            logger.warning("Refusing to save "+dbObject.getClassName()+" "+dbObject.getObjectId()+", it was loaded with view profile "+dbObject.getViewProfile().getName());
+            return null;
+        }
 
         dbObject.setUpdateDate(new Date());
 
@@ -349,21 +1035,21 @@ public class Database {
      * @return The bound object if successful or null if not successful
      */
     private <T extends Model> T save(T dbObject, int retries){
-        Document result = null;
-
-        if(dbObject == null || dbObject.getDocument() == null){
+        if(dbObject == null || !dbObject.hasDocument()){
             logger.warning("Trying to store null!");
             return null;
         }
+        long start = System.nanoTime();
+        boolean failed = false;
 
         if(!dbObject.validate(false)){
             // TODO: Handle validation error
         }
 
-        if(dbObject.getObjectId() != null){
+        if(dbObject.getObjectId() != null && (!dbObject.isPersisted() || dbObject.requiresOldModel())){
             T oldObject = null;
             try {
-                oldObject = get(dbObject.getObjectId(), (Class<T>) dbObject.getClass());
+                oldObject = load(dbObject.getObjectId(), (Class<T>) dbObject.getClass(), false);
             } catch (Exception e){
                 logger.info("Could not get oldObject for comparison");
             }
@@ -376,14 +1062,50 @@ public class Database {
             dbObject.updateBeforeSave(null);
         }
 
+        // Checked after updateBeforeSave, which may hand out the document
+        Document update = null;
+        if(dbObject.getObjectId() != null && dbObject.isTrackingChanges()){
+            update = getPartialUpdate(dbObject);
+        }
+
+        if(batchMode){
+            // The model is marked clean now but written at the flush, so the queued write holds a copy: later changes
+            // to the model are tracked for its next save instead of being written with this one
+            if(update != null){
+                Document snapshot = EntityCache.copy(update);
+                queueWrite(dbObject.getClassName(), new UpdateOneModel<>(Filters.eq("_id", dbObject.getObjectId()), snapshot), dbObject, DocumentSize.estimate(snapshot));
+            } else if(dbObject.getObjectId() != null){
+                Document snapshot = EntityCache.copy(dbObject.document);
+                queueWrite(dbObject.getClassName(), new ReplaceOneModel<>(Filters.eq("_id", dbObject.getObjectId()), snapshot), dbObject, DocumentSize.estimate(snapshot));
+            } else {
+                dbObject.setObjectId(new ObjectId());
+                Document snapshot = EntityCache.copy(dbObject.document);
+                queueWrite(dbObject.getClassName(), new InsertOneModel<>(snapshot), dbObject, DocumentSize.estimate(snapshot));
+            }
+            dbObject.markClean();
+            entityCache.invalidate(dbObject.getClassName(), dbObject.getObjectId());
+            if(unitOfWork != null) unitOfWork.put(dbObject);
+            fireSaved(dbObject);
+            DatabaseMetrics.record(dbObject.getClassName(), "save", System.nanoTime() - start, false, 1, 0);
+            return dbObject;
+        }
+
         try {
             openDatabase();
-            if(dbObject.getObjectId() != null){
-                db.getCollection(dbObject.getClassName()).replaceOne(Filters.eq("_id", dbObject.getObjectId()), dbObject.getDocument());
+            if(update != null){
+                if(!update.isEmpty()) {
+                    db.getCollection(dbObject.getClassName()).updateOne(Filters.eq("_id", dbObject.getObjectId()), update);
+                }
+            } else if(dbObject.getObjectId() != null){
+                db.getCollection(dbObject.getClassName()).replaceOne(Filters.eq("_id", dbObject.getObjectId()), dbObject.document);
             } else {
-                db.getCollection(dbObject.getClassName()).insertOne(dbObject.getDocument());
+                db.getCollection(dbObject.getClassName()).insertOne(dbObject.document);
             }
+            dbObject.markClean();
+            if(unitOfWork != null) unitOfWork.put(dbObject);
+            fireSaved(dbObject);
         }catch (Exception e){
+            failed = true;
             logger.warning("General exception while saving object ("+dbObject.getClass().getSimpleName()+") to database: "+e.getMessage());
             try {
                 logger.warning("JSON: " + dbObject.getDocument().toJson());
@@ -399,31 +1121,164 @@ public class Database {
                 e.getCause().printStackTrace();
             }
         }finally{
+            entityCache.invalidate(dbObject.getClassName(), dbObject.getObjectId());
+            DatabaseMetrics.record(dbObject.getClassName(), "save", System.nanoTime() - start, failed, failed ? 0 : 1, 0);
             closeDatabase();
         }
 
         return dbObject;
     }
 
+    /**
+     * Saves many objects of one class with bulk writes, with the semantics of {@link #save(Model)}: the stored
+     * versions needed by updateBeforeSave are read from the collection with one query per chunk, models read from the
+     * database are written as partial updates, other models with an id replace the stored document and models
+     * without an id are inserted. Models loaded under a partial view profile are skipped.
+     * @param c         The class of the objects
+     * @param dbObjects The objects to save
+     * @return          The writes which failed, empty when all objects were saved
+     */
+    public <T extends Model> List<BatchWriteError> saveAll(Class<T> c, List<T> dbObjects){
+        List<BatchWriteError> errors = new ArrayList<>(0);
+        if(dbObjects == null || dbObjects.isEmpty()) return errors;
+        long start = System.nanoTime();
+        boolean failed = false;
+        String collection = c.getSimpleName();
+
+        List<ObjectId> oldIds = new ArrayList<>();
+        for(T dbObject : dbObjects){
+            if(dbObject == null || !dbObject.hasDocument() || dbObject.isPartial()) continue;
+            if(dbObject.getObjectId() != null && (!dbObject.isPersisted() || dbObject.requiresOldModel())) oldIds.add(dbObject.getObjectId());
+        }
+        Map<ObjectId, T> oldObjects = new HashMap<>(oldIds.size() * 2);
+        BatchWriter writer = new BatchWriter(config.getBatchMaxOperations(), config.getBatchMaxBytes());
+        List<T> written = new ArrayList<>(dbObjects.size());
+        try {
+            openDatabase();
+            loadStored(oldIds, c, oldObjects);
+            for(T dbObject : dbObjects){
+                if(dbObject == null || !dbObject.hasDocument()) continue;
+                if(dbObject.isPartial()){
+                    errors.add(new BatchWriteError(collection, dbObject, -1, "Loaded with view profile "+dbObject.getViewProfile().getName()));
+                    continue;
+                }
+                dbObject.setUpdateDate(new Date());
+                dbObject.validate(false);
+                T oldObject = dbObject.getObjectId() != null ? oldObjects.get(dbObject.getObjectId()) : null;
+                dbObject.updateBeforeSave(oldObject);
+
+                Document update = dbObject.getObjectId() != null && dbObject.isTrackingChanges() ? getPartialUpdate(dbObject) : null;
+                if(update != null){
+                    if(update.isEmpty()) continue;
+                    writer.add(db, collection, new UpdateOneModel<>(Filters.eq("_id", dbObject.getObjectId()), update), dbObject, DocumentSize.estimate(update));
+                } else if(dbObject.getObjectId() != null){
+                    writer.add(db, collection, new ReplaceOneModel<>(Filters.eq("_id", dbObject.getObjectId()), dbObject.document), dbObject, DocumentSize.estimate(dbObject.document));
+                } else {
+                    dbObject.setObjectId(new ObjectId());
+                    writer.add(db, collection, new InsertOneModel<>(dbObject.document), dbObject, DocumentSize.estimate(dbObject.document));
+                }
+                written.add(dbObject);
+            }
+            writer.flush(db);
+        }catch (Exception e){
+            failed = true;
+            logger.warning("Could not save "+dbObjects.size()+" objects of class "+collection+": "+e.getMessage());
+            errors.add(new BatchWriteError(collection, null, -1, e.getMessage()));
+            return errors;
+        }finally{
+            DatabaseMetrics.record(collection, "saveAll", System.nanoTime() - start, failed, written.size(), 0);
+            closeDatabase();
+        }
+
+        errors.addAll(writer.getErrors());
+        Set<Model> failedObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(BatchWriteError error : writer.getErrors()) failedObjects.add(error.getModel());
+        for(T dbObject : written){
+            if(failedObjects.contains(dbObject)) continue;
+            dbObject.markClean();
+            entityCache.invalidate(collection, dbObject.getObjectId());
+            if(unitOfWork != null) unitOfWork.put(dbObject);
+            fireSaved(dbObject);
+        }
+        return errors;
+    }
+
+    /**
+     * Reads the stored versions of models with one $in query per chunk, like the old model read by save it bypasses
+     * the unit of work and the entity cache, which may hold the instances being saved or an outdated copy
+     * @param objectIds The ids to read
+     * @param c         The class of the models
+     * @param stored    Receives the stored models by id
+     */
+    private <T extends Model> void loadStored(List<ObjectId> objectIds, Class<T> c, Map<ObjectId, T> stored){
+        int chunkSize = config.getMultiGetChunkSize();
+        for(int from = 0; from < objectIds.size(); from += chunkSize){
+            List<ObjectId> chunk = objectIds.subList(from, Math.min(from + chunkSize, objectIds.size()));
+            for(T model : db.getCollection(c.getSimpleName(), c).find(Filters.in("_id", chunk))){
+                stored.put(model.getObjectId(), model);
+            }
+        }
+    }
+
+    /**
+     * Builds a $set / $unset update for the fields changed since the model was read
+     * @param dbObject  The model to build the update for
+     * @return          The update document, empty when nothing changed
+     */
+    private Document getPartialUpdate(Model dbObject){
+        Document set = new Document();
+        Document unset = new Document();
+        Set<String> dirtyFields = dbObject.getDirtyFields();
+        for(String field : dirtyFields){
+            // _id can not change, $-prefixed fields are client side artifacts which can not be stored
+            if(field.equals("_id") || field.startsWith("$")) continue;
+            if(dbObject.document.containsKey(field)){
+                set.append(field, dbObject.document.get(field));
+            } else {
+                unset.append(field, "");
+            }
+        }
+        Document update = new Document();
+        if(!set.isEmpty()) update.append("$set", set);
+        if(!unset.isEmpty()) update.append("$unset", unset);
+        return update;
+    }
+
     /**
      * Update a single document
      * @param tClass    The class to update (collection name)
      * @param filter    The filter to use to select documents to update
      * @param update    The fields with new values to update
      * @param <T>       tClass needs to extend Model
-     * @return          The update count (1 if successful)
+     * @return          The update count (1 if successful), always 0 in batch mode
      */
     public <T extends Model> long updateOne(Class<T> tClass, Document filter, Document update){
+        long start = System.nanoTime();
+        boolean failed = false;
+        long modified = 0L;
+        if(unitOfWork != null) unitOfWork.evictCollection(tClass.getSimpleName());
+        entityCache.invalidateAll(tClass.getSimpleName());
+        if(batchMode){
+            queueWrite(tClass.getSimpleName(), new UpdateOneModel<>(filter, update), null, DocumentSize.estimate(filter) + DocumentSize.estimate(update));
+            DatabaseMetrics.record(tClass.getSimpleName(), "updateOne", System.nanoTime() - start, false, 0, 0);
+            fireChanged(tClass.getSimpleName());
+            return 0L;
+        }
         try {
             openDatabase();
             UpdateResult result = db.getCollection(tClass.getSimpleName()).updateOne(filter, update);
-            return result.getModifiedCount();
+            modified = result.getModifiedCount();
         } catch (Exception e) {
+            failed = true;
             logger.info("Error on updateOne: "+e.getMessage());
         } finally {
+            // Reads made while the update ran may have cached the previous version
+            entityCache.invalidateAll(tClass.getSimpleName());
+            DatabaseMetrics.record(tClass.getSimpleName(), "updateOne", System.nanoTime() - start, failed, modified, 0);
             closeDatabase();
         }
-        return 0L;
+        if(!failed) fireChanged(tClass.getSimpleName());
+        return modified;
     }
 
     /**
@@ -432,19 +1287,35 @@ public class Database {
      * @param filter    The filter to use to select documents to update
      * @param update    The fields with new values to update
      * @param <T>       tClass needs to extend Model
-     * @return          The update count (higher than 0 if successful)
+     * @return          The update count (higher than 0 if successful), always 0 in batch mode
      */
     public <T extends Model> long updateMany(Class<T> tClass, Document filter, Document update){
+        long start = System.nanoTime();
+        boolean failed = false;
+        long modified = 0L;
+        if(unitOfWork != null) unitOfWork.evictCollection(tClass.getSimpleName());
+        entityCache.invalidateAll(tClass.getSimpleName());
+        if(batchMode){
+            queueWrite(tClass.getSimpleName(), new UpdateManyModel<>(filter, update), null, DocumentSize.estimate(filter) + DocumentSize.estimate(update));
+            DatabaseMetrics.record(tClass.getSimpleName(), "updateMany", System.nanoTime() - start, false, 0, 0);
+            fireChanged(tClass.getSimpleName());
+            return 0L;
+        }
         try {
             openDatabase();
             UpdateResult result = db.getCollection(tClass.getSimpleName()).updateMany(filter, update);
-            return result.getModifiedCount();
+            modified = result.getModifiedCount();
         } catch (Exception e) {
+            failed = true;
             logger.info("Error on updateMany: "+e.getMessage());
         } finally {
+            // Reads made while the update ran may have cached the previous version
+            entityCache.invalidateAll(tClass.getSimpleName());
+            DatabaseMetrics.record(tClass.getSimpleName(), "updateMany", System.nanoTime() - start, failed, modified, 0);
             closeDatabase();
         }
-        return 0L;
+        if(!failed) fireChanged(tClass.getSimpleName());
+        return modified;
     }
 
     /**
@@ -463,13 +1334,21 @@ public class Database {
      * @return int The number of records found
      */
     public long count(Class tClass, int retries){
+        long start = System.nanoTime();
+        boolean failed = false;
         long result = 0;
         try{
             openDatabase();
             result = db.getCollection(tClass.getSimpleName()).count();
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not count objects of class " + tClass.getSimpleName() + ", reason: " + e.getMessage());
         }finally{
+            long elapsed = System.nanoTime() - start;
+            DatabaseMetrics.record(tClass.getSimpleName(), "count", elapsed, failed, 0, 0);
+            if(SlowQueryLog.isSlow(elapsed)){
+                SlowQueryLog.record(tClass.getSimpleName(), "count", null, null, null, 0, 0, elapsed, null);
+            }
             closeDatabase();
         }
         return result;
@@ -493,16 +1372,25 @@ public class Database {
      * @return int The number of records found
      */
     public long count(Class tClass, Document filter, int retries){
+        long start = System.nanoTime();
+        boolean failed = false;
         long result = 0;
         try{
             openDatabase();
             result = db.getCollection(tClass.getSimpleName()).count(filter);
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not count objects of class " + tClass.getSimpleName() + ", reason: " + e.getMessage());
             logger.info("Cause: ");
             e.printStackTrace();
             if(e.getCause() != null) e.getCause().printStackTrace();
         }finally{
+            long elapsed = System.nanoTime() - start;
+            DatabaseMetrics.record(tClass.getSimpleName(), "count", elapsed, failed, 0, 0);
+            if(SlowQueryLog.isSlow(elapsed)){
+                SlowQueryLog.record(tClass.getSimpleName(), "count", filter, null, null, 0, 0, elapsed,
+                        SlowQueryLog.countCommand(tClass.getSimpleName(), filter));
+            }
             closeDatabase();
         }
         return result;
@@ -528,15 +1416,30 @@ public class Database {
             logger.warning("Trying to delete null document!");
             return;
         }
+        long start = System.nanoTime();
+        boolean failed = false;
+        if(unitOfWork != null) unitOfWork.evict(dbObject.getClassName(), dbObject.getObjectId());
+        entityCache.invalidate(dbObject.getClassName(), dbObject.getObjectId());
+        if(batchMode){
+            queueWrite(dbObject.getClassName(), new DeleteOneModel<>(dbObject.getDocument()), dbObject, DocumentSize.estimate(dbObject.getDocument()));
+            DatabaseMetrics.record(dbObject.getClassName(), "delete", System.nanoTime() - start, false, 0, 0);
+            fireDeleted(dbObject);
+            return;
+        }
+        long deleted = 0;
         try{
             openDatabase();
-            db.getCollection(dbObject.getClassName()).deleteOne(dbObject.getDocument());
+            deleted = db.getCollection(dbObject.getClassName()).deleteOne(dbObject.getDocument()).getDeletedCount();
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not delete object from database: "+e.getMessage());
             e.printStackTrace();
         }finally{
+            entityCache.invalidate(dbObject.getClassName(), dbObject.getObjectId());
+            DatabaseMetrics.record(dbObject.getClassName(), "delete", System.nanoTime() - start, failed, deleted, 0);
             closeDatabase();
         }
+        if(!failed) fireDeleted(dbObject);
     }
 
     /**
@@ -558,15 +1461,30 @@ public class Database {
      */
     public <T extends Model> void delete(Class<T> tClass, Document filter, int retries) {
         if(filter == null) return;
+        long start = System.nanoTime();
+        boolean failed = false;
+        if(unitOfWork != null) unitOfWork.evictCollection(tClass.getSimpleName());
+        entityCache.invalidateAll(tClass.getSimpleName());
+        if(batchMode){
+            queueWrite(tClass.getSimpleName(), new DeleteManyModel<>(filter), null, DocumentSize.estimate(filter));
+            DatabaseMetrics.record(tClass.getSimpleName(), "delete", System.nanoTime() - start, false, 0, 0);
+            fireChanged(tClass.getSimpleName());
+            return;
+        }
+        long deleted = 0;
         try{
             openDatabase();
-            db.getCollection(tClass.getSimpleName()).deleteMany(filter);
+            deleted = db.getCollection(tClass.getSimpleName()).deleteMany(filter).getDeletedCount();
         }catch (Exception e){
+            failed = true;
             logger.warning("Could not delete object from database (filter "+filter.toJson()+"): "+e.getMessage());
             e.printStackTrace();
         }finally{
+            entityCache.invalidateAll(tClass.getSimpleName());
+            DatabaseMetrics.record(tClass.getSimpleName(), "delete", System.nanoTime() - start, failed, deleted, 0);
             closeDatabase();
         }
+        if(!failed) fireChanged(tClass.getSimpleName());
     }
 
     /**
@@ -592,7 +1510,6 @@ public class Database {
                 logger.warning("Error closing database ["+e.getClass().getCanonicalName()+"]: "+e.getMessage());
             }
             db = null;
-            transaction = null;
         }
     }
 
@@ -655,23 +1572,17 @@ public class Database {
      */
     @Deprecated
     public <T extends Model> String toJson(Iterable<T> dbObjects){
-        StringBuilder builder = new StringBuilder();
-        builder.append("[");
+        StringWriter writer = new StringWriter();
+        JsonStreamWriter json = new JsonStreamWriter(writer);
         for(Model dbObject : dbObjects){
-            String jsonString = toJson(dbObject);
-            if(jsonString != null && !jsonString.equals("")) {
-                if (builder.length() > 1) builder.append(",");
-                builder.append(jsonString);
-            }else{
-                if(dbObject == null){
-                    logger.warning("Got empty object in list");
-                }else{
-                    logger.warning("JSON String was empty for object "+dbObject.getDbId());
-                }
+            if(dbObject == null || dbObject.getDocument() == null){
+                logger.warning("Got empty object in list");
+                continue;
             }
+            json.write(dbObject.getDocument());
         }
-        builder.append("]");
-        return builder.toString();
+        json.end();
+        return writer.toString();
     }
 
     /**
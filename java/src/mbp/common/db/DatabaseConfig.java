@@ -0,0 +1,236 @@
+package mbp.common.db;
+
+/**
+ * Settings for the process-wide MongoClient used by {@link Database}. Pass an instance to
+ * {@link Database#startup(DatabaseConfig)} before the first database call, otherwise the defaults below are used.
+ */
+public class DatabaseConfig {
+
+    private String connectionString = "mongodb://localhost:27017";
+    private String databaseName = "mbp";
+
+    private int maxPoolSize = 100;
+    private int minPoolSize = 0;
+    private int waitQueueMultiplier = 5;
+    private int maxWaitTime = 10000;
+    private int maxConnectionIdleTime = 60000;
+    private int maxConnectionLifeTime = 0;
+
+    private int batchMaxOperations = 1000;
+    private long batchMaxBytes = 8 * 1024 * 1024;
+
+    private int multiGetChunkSize = 500;
+
+    private long slowQueryThreshold = 100;
+    private int slowQueryLogSize = 500;
+    private long slowQueryExplainInterval = 60000;
+
+    private long prefetchBatchBytes = 4 * 1024 * 1024;
+    private int prefetchBatches = 2;
+    private long prefetchIdleTimeout = 30000;
+
+    private String pageTokenSecret;
+
+    public String getConnectionString() {
+        return connectionString;
+    }
+
+    /**
+     * @param connectionString  The mongodb:// connection string, may contain credentials and driver options
+     */
+    public void setConnectionString(String connectionString) {
+        this.connectionString = connectionString;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public void setDatabaseName(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @param maxPoolSize   The maximum number of connections per server
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    /**
+     * @param minPoolSize   The number of connections kept open per server, even when idle
+     */
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getWaitQueueMultiplier() {
+        return waitQueueMultiplier;
+    }
+
+    /**
+     * @param waitQueueMultiplier   Multiplied with the pool size this gives the number of threads that may wait for
+     *                              a connection, threads beyond that fail immediately
+     */
+    public void setWaitQueueMultiplier(int waitQueueMultiplier) {
+        this.waitQueueMultiplier = waitQueueMultiplier;
+    }
+
+    public int getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * @param maxWaitTime   The time in milliseconds a thread waits for a free connection before failing
+     */
+    public void setMaxWaitTime(int maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public int getMaxConnectionIdleTime() {
+        return maxConnectionIdleTime;
+    }
+
+    /**
+     * @param maxConnectionIdleTime The time in milliseconds after which an idle connection is closed, 0 keeps them open
+     */
+    public void setMaxConnectionIdleTime(int maxConnectionIdleTime) {
+        this.maxConnectionIdleTime = maxConnectionIdleTime;
+    }
+
+    public int getMaxConnectionLifeTime() {
+        return maxConnectionLifeTime;
+    }
+
+    /**
+     * @param maxConnectionLifeTime The maximum lifetime of a connection in milliseconds, 0 means unlimited
+     */
+    public void setMaxConnectionLifeTime(int maxConnectionLifeTime) {
+        this.maxConnectionLifeTime = maxConnectionLifeTime;
+    }
+
+    public int getBatchMaxOperations() {
+        return batchMaxOperations;
+    }
+
+    /**
+     * @param batchMaxOperations    The number of writes queued per collection in batch mode before they are flushed
+     */
+    public void setBatchMaxOperations(int batchMaxOperations) {
+        this.batchMaxOperations = batchMaxOperations;
+    }
+
+    public long getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    /**
+     * @param batchMaxBytes The estimated size in bytes of the writes queued per collection before they are flushed
+     */
+    public void setBatchMaxBytes(long batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public int getMultiGetChunkSize() {
+        return multiGetChunkSize;
+    }
+
+    /**
+     * @param multiGetChunkSize The maximum number of ids in a single $in query of Database.getMany
+     */
+    public void setMultiGetChunkSize(int multiGetChunkSize) {
+        this.multiGetChunkSize = Math.max(1, multiGetChunkSize);
+    }
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * @param slowQueryThreshold    Queries taking longer than this many milliseconds are added to the
+     *                              {@link SlowQueryLog}, a negative value disables the log
+     */
+    public void setSlowQueryThreshold(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    public int getSlowQueryLogSize() {
+        return slowQueryLogSize;
+    }
+
+    /**
+     * @param slowQueryLogSize  The number of most recent slow queries kept in memory
+     */
+    public void setSlowQueryLogSize(int slowQueryLogSize) {
+        this.slowQueryLogSize = Math.max(1, slowQueryLogSize);
+    }
+
+    public long getSlowQueryExplainInterval() {
+        return slowQueryExplainInterval;
+    }
+
+    /**
+     * @param slowQueryExplainInterval  Each slow query shape is explained at most once per this many milliseconds,
+     *                                  0 disables explaining
+     */
+    public void setSlowQueryExplainInterval(long slowQueryExplainInterval) {
+        this.slowQueryExplainInterval = slowQueryExplainInterval;
+    }
+
+    public long getPrefetchBatchBytes() {
+        return prefetchBatchBytes;
+    }
+
+    /**
+     * @param prefetchBatchBytes    The size in bytes a prefetched batch aims for, the batch size of a prefetching
+     *                              result is this divided by the mean document size of the collection
+     */
+    public void setPrefetchBatchBytes(long prefetchBatchBytes) {
+        this.prefetchBatchBytes = Math.max(1, prefetchBatchBytes);
+    }
+
+    public int getPrefetchBatches() {
+        return prefetchBatches;
+    }
+
+    /**
+     * @param prefetchBatches   The number of batches a prefetching result may read ahead of its caller
+     */
+    public void setPrefetchBatches(int prefetchBatches) {
+        this.prefetchBatches = Math.max(1, prefetchBatches);
+    }
+
+    public long getPrefetchIdleTimeout() {
+        return prefetchIdleTimeout;
+    }
+
+    /**
+     * @param prefetchIdleTimeout   A prefetching result of which the caller has not taken a model for this many
+     *                              milliseconds while the read ahead is full is abandoned and its cursor closed
+     */
+    public void setPrefetchIdleTimeout(long prefetchIdleTimeout) {
+        this.prefetchIdleTimeout = prefetchIdleTimeout;
+    }
+
+    public String getPageTokenSecret() {
+        return pageTokenSecret;
+    }
+
+    /**
+     * @param pageTokenSecret   The key page tokens are signed with, must be the same on every server which reads
+     *                          the tokens of the others. Without a secret each process signs with a random key, so
+     *                          its tokens are rejected by other processes and after a restart.
+     */
+    public void setPageTokenSecret(String pageTokenSecret) {
+        this.pageTokenSecret = pageTokenSecret;
+    }
+
+}
@@ -0,0 +1,160 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Latency histograms and counters per collection and operation for all {@link Database} calls and result iteration.
+ * Every combination is registered as an MXBean named
+ * mbp.common.db:type=DatabaseMetrics,collection=&lt;collection&gt;,operation=&lt;operation&gt; when it is first used,
+ * {@link #snapshot()} returns the same numbers for pull-style reporting.
+ */
+public class DatabaseMetrics {
+
+    private static final Logger logger = Logger.getLogger(DatabaseMetrics.class.getName());
+    private static final String DOMAIN = "mbp.common.db";
+
+    /**
+     * The operation under which result iteration is recorded, its latency is the time spent waiting on the cursor
+     */
+    public static final String ITERATE = "iterate";
+
+    private static final ConcurrentHashMap<String, OperationMetrics> metrics = new ConcurrentHashMap<>();
+    private static volatile boolean trackBytes = true;
+
+    private DatabaseMetrics(){
+    }
+
+    /**
+     * Returns the metrics of an operation on a collection, creating and registering them on first use
+     * @param collection    The collection name
+     * @param operation     The operation name
+     * @return              The metrics
+     */
+    public static OperationMetrics get(String collection, String operation){
+        String key = collection + "/" + operation;
+        OperationMetrics operationMetrics = metrics.get(key);
+        if(operationMetrics == null){
+            operationMetrics = metrics.computeIfAbsent(key, k -> register(new OperationMetrics(collection, operation)));
+        }
+        return operationMetrics;
+    }
+
+    /**
+     * Records one call
+     * @param collection    The collection name
+     * @param operation     The operation name
+     * @param nanos         The duration of the call
+     * @param error         Whether the call failed
+     * @param documents     The number of documents returned or written
+     * @param bytes         The (estimated) number of bytes read
+     */
+    public static void record(String collection, String operation, long nanos, boolean error, long documents, long bytes){
+        get(collection, operation).record(nanos, error, documents, bytes);
+    }
+
+    /**
+     * Records the time between opening a cursor and receiving its first document
+     * @param collection    The collection name
+     * @param nanos         The time to the first document
+     */
+    public static void recordFirstDocument(String collection, long nanos){
+        get(collection, ITERATE).recordFirstDocument(nanos);
+    }
+
+    /**
+     * Estimates the size of a read document, when byte tracking is enabled
+     * @param document  The document read
+     * @return          The estimated size in bytes, 0 when byte tracking is disabled
+     */
+    public static long sizeOf(Document document){
+        return trackBytes && document != null ? DocumentSize.estimate(document) : 0;
+    }
+
+    /**
+     * Returns the size of the document of a read model, exact when the model was decoded by {@link ModelCodec}
+     * @param model The model read
+     * @return      The size in bytes, 0 when byte tracking is disabled
+     */
+    public static long sizeOf(Model model){
+        if(!trackBytes || model == null) return 0;
+        return model.getDecodedSize() > 0 ? model.getDecodedSize() : DocumentSize.estimate(model.document);
+    }
+
+    /**
+     * Returns the mean size of the documents read from a collection by iterating results
+     * @param collection    The collection name
+     * @return              The mean size in bytes, 0 when nothing was read or byte tracking is disabled
+     */
+    public static long getMeanDocumentSize(String collection){
+        OperationMetrics operationMetrics = metrics.get(collection + "/" + ITERATE);
+        if(operationMetrics == null) return 0;
+        long documents = operationMetrics.getDocuments();
+        return documents > 0 ? operationMetrics.getBytes() / documents : 0;
+    }
+
+    /**
+     * Byte counts are estimated by walking each document read, which can be switched off for very large results
+     * @param track Whether to estimate the size of documents read
+     */
+    public static void setTrackBytes(boolean track){
+        trackBytes = track;
+    }
+
+    public static boolean isTrackingBytes(){
+        return trackBytes;
+    }
+
+    /**
+     * @return A copy of the current metrics, slowest operations (by p99) first
+     */
+    public static List<OperationSnapshot> snapshot(){
+        List<OperationSnapshot> snapshots = new ArrayList<>(metrics.size());
+        for(OperationMetrics operationMetrics : metrics.values()){
+            snapshots.add(operationMetrics.snapshot());
+        }
+        Collections.sort(snapshots, Comparator.comparingLong(OperationSnapshot::getP99Micros).reversed());
+        return snapshots;
+    }
+
+    /**
+     * Drops all metrics and unregisters their MXBeans
+     */
+    public static void reset(){
+        for(OperationMetrics operationMetrics : metrics.values()){
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = objectName(operationMetrics.getCollection(), operationMetrics.getOperation());
+                if(server.isRegistered(name)) server.unregisterMBean(name);
+            } catch (Exception e) {
+                logger.fine("Could not unregister database metrics: "+e.getMessage());
+            }
+        }
+        metrics.clear();
+    }
+
+    private static OperationMetrics register(OperationMetrics operationMetrics){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(operationMetrics.getCollection(), operationMetrics.getOperation());
+            if(!server.isRegistered(name)) server.registerMBean(operationMetrics, name);
+        } catch (Exception e) {
+            logger.info("Could not register database metrics for "+operationMetrics.getCollection()+"."+operationMetrics.getOperation()+": "+e.getMessage());
+        }
+        return operationMetrics;
+    }
+
+    private static ObjectName objectName(String collection, String operation) throws Exception {
+        return new ObjectName(DOMAIN + ":type=DatabaseMetrics,collection=" + (collection.matches("[\\w.-]+") ? collection : ObjectName.quote(collection)) + ",operation=" + operation);
+    }
+
+}
@@ -1,13 +1,27 @@
 package mbp.common.db;
 
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.CountOptions;
 import com.wwk.meubelplan.common.logger.Logger;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecConfigurationException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by sem on 13-10-16.
@@ -16,102 +30,694 @@ public class DatabaseResult<T extends Model> implements Iterable<T> {
 
     private static final Logger logger = Logger.getLogger(DatabaseResult.class);
 
+    private static final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(AsyncDatabase.daemonThreads("database-prefetch"));
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+
     private Class<T> type;
-    private FindIterable<Document> documentFindIterable;
+    private FindIterable<?> findIterable;
+    private MongoCollection<Document> collection;
+    private Document filter;
+    private Document sort;
+    private Document projection;
+    private ViewProfile profile;
+    private boolean lazy = false;
+    private boolean prefetch = false;
+    private int batchSize = 0;
+    private int skip = 0;
+    private int limit = 0;
 
     public DatabaseResult(Class<T> type, FindIterable<Document> documentFindIterable){
         this.type = type;
-        this.documentFindIterable = documentFindIterable;
+        this.findIterable = documentFindIterable;
+    }
+
+    /**
+     * Results are decoded straight into models when the codec registry of the collection has a codec for the type,
+     * see {@link ModelCodecProvider}, otherwise documents are read and wrapped in models.
+     * @param type                  The class of the results
+     * @param collection            The collection queried, used to count the results
+     * @param filter                The filter of the query
+     */
+    public DatabaseResult(Class<T> type, MongoCollection<Document> collection, Document filter){
+        this.type = type;
+        this.findIterable = hasCodec(collection, type) ? collection.withDocumentClass(type).find(filter) : collection.find(filter);
+        this.collection = collection;
+        this.filter = filter;
     }
 
+    private static boolean hasCodec(MongoCollection<Document> collection, Class<?> type){
+        try {
+            return collection.getCodecRegistry().get(type) != null;
+        } catch (CodecConfigurationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an iterator over the results, which reads ahead on a background thread when prefetching is enabled.
+     * Close it (it is AutoCloseable) when iteration may stop early.
+     */
     @Override
     public Iterator<T> iterator() {
-        return new DatabaseResultIterator();
+        return prefetch ? new PrefetchIterator() : new DatabaseResultIterator();
     }
 
     @Override
-    public void forEach(Consumer action) {
-        // Not implemented
+    public void forEach(Consumer<? super T> action) {
+        if(prefetch){
+            PrefetchIterator iterator = new PrefetchIterator();
+            try {
+                while(iterator.hasNext()) action.accept(iterator.next());
+            } finally {
+                iterator.close();
+            }
+            return;
+        }
+        DatabaseResultIterator iterator = new DatabaseResultIterator();
+        try {
+            iterator.forEachRemaining(action);
+        } finally {
+            iterator.close();
+        }
     }
 
+    /**
+     * Returns an ordered spliterator over the results. The cursor is read sequentially, splits hand batches of rows
+     * to other threads, which create the models. The size is only estimated from the limit, without a count query.
+     */
     @Override
-    public Spliterator spliterator() {
-        // Not implemented
-        return null;
+    public Spliterator<T> spliterator() {
+        return new DatabaseResultSpliterator();
+    }
+
+    /**
+     * Returns a sequential stream over the results. The cursor is closed when the stream is exhausted or closed, or
+     * when the limit has been read. A stream can not tell the cursor it stopped pulling, so use try-with-resources
+     * when the stream may short-circuit before that:
+     * <pre>
+     *     try (Stream&lt;Product&gt; products = result.stream()) {
+     *         return products.filter(Product::isVisible).findFirst().orElse(null);
+     *     }
+     * </pre>
+     * @return A stream of the results
+     */
+    public Stream<T> stream(){
+        DatabaseResultSpliterator spliterator = new DatabaseResultSpliterator();
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Returns a parallel stream over the results. The cursor is read on one thread, creating the models and all
+     * downstream work runs on the common ForkJoin pool. The cursor is closed when the stream is exhausted or closed,
+     * or when the limit has been read, see {@link #stream()}.
+     * @return A parallel stream of the results
+     */
+    public Stream<T> parallelStream(){
+        DatabaseResultSpliterator spliterator = new DatabaseResultSpliterator();
+        return StreamSupport.stream(spliterator, true).onClose(spliterator::close);
     }
 
     public T first(){
-        Document document = documentFindIterable.first();
-        if(document != null){
-            try {
-                T first = type.newInstance();
-                first.setDocument(document);
-                return first;
-            } catch (Exception e) {
-                logger.warning("Could not create new instance of "+type.getSimpleName()+", reason: "+e.getMessage());
-            }
+        long start = System.nanoTime();
+        boolean failed = false;
+        Object row = null;
+        try {
+            row = findIterable.first();
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            DatabaseMetrics.record(type.getSimpleName(), "first", elapsed, failed, row != null ? 1 : 0, sizeOf(row));
+            if(SlowQueryLog.isSlow(elapsed)) logSlowQuery("first", elapsed);
+        }
+        if(row != null){
+            return hydrate(row);
         }
         return null;
     }
 
+    /**
+     * Reads the results as raw BSON, the models decode a field when it is first read, see {@link LazyDocument}. For
+     * pages which show a few fields of large documents. Call before iterating, the sort, projection, skip and limit
+     * set so far are kept.
+     * @return This result
+     */
+    public DatabaseResult<T> lazy(){
+        if(collection == null){
+            logger.warning("Can not read results of "+type.getSimpleName()+" lazily without the collection");
+            return this;
+        }
+        FindIterable<RawBsonDocument> rawIterable = collection.withDocumentClass(RawBsonDocument.class).find(filter);
+        if(sort != null) rawIterable.sort(sort);
+        if(projection != null) rawIterable.projection(projection);
+        if(skip != 0) rawIterable.skip(skip);
+        if(limit != 0) rawIterable.limit(limit);
+        if(batchSize != 0) rawIterable.batchSize(batchSize);
+        findIterable = rawIterable;
+        lazy = true;
+        return this;
+    }
+
+    /**
+     * Sets the number of documents the server returns per batch, instead of the driver default
+     * @param batchSize The batch size
+     * @return          This result
+     */
+    public DatabaseResult<T> batchSize(int batchSize){
+        findIterable.batchSize(batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Reads ahead on a background thread: while the caller works through the models read so far, the next batches
+     * are fetched and turned into models, up to {@link DatabaseConfig#getPrefetchBatches()} batches ahead. Without an
+     * explicit batch size, the batch size follows from the mean document size of the collection, see
+     * {@link DatabaseConfig#getPrefetchBatchBytes()}. Applies to iterator() and forEach.
+     * @return  This result
+     */
+    public DatabaseResult<T> prefetch(){
+        this.prefetch = true;
+        return this;
+    }
+
+    /**
+     * The batch size of a prefetching result without an explicit batch size, 0 to keep the driver default when the
+     * document size is not known yet
+     */
+    private int adaptiveBatchSize(){
+        long meanSize = DatabaseMetrics.getMeanDocumentSize(type.getSimpleName());
+        if(meanSize <= 0) return 0;
+        long size = Database.getConfig().getPrefetchBatchBytes() / meanSize;
+        return (int) Math.max(16, Math.min(10000, size));
+    }
+
     public DatabaseResult<T> sort(Document document){
-        documentFindIterable.sort(document);
+        findIterable.sort(document);
+        sort = document;
         return this;
     }
 
     public DatabaseResult<T> limit(int i){
-        documentFindIterable.limit(i);
+        findIterable.limit(i);
+        limit = i;
         return this;
     }
 
     public DatabaseResult<T> skip(int i){
-        documentFindIterable.skip(i);
+        findIterable.skip(i);
+        skip = i;
         return this;
     }
 
     public DatabaseResult<T> projection(Document projection){
-        documentFindIterable.projection(projection);
+        findIterable.projection(projection);
+        this.projection = projection;
+        // Models of a projection are partial, like those of a partial profile
+        if(projection != null && (profile == null || !profile.isPartial())) profile = ViewProfile.projected(projection);
         return this;
     }
 
-    private class DatabaseResultIterator implements Iterator<T> {
+    /**
+     * Loads only the fields of a view profile. The models of a partial profile can not be saved.
+     * @param profile   The view profile, or null to load the whole documents
+     * @return          This result
+     */
+    public DatabaseResult<T> profile(ViewProfile profile){
+        this.profile = profile;
+        if(profile != null && profile.isPartial()) projection(profile.getProjection());
+        return this;
+    }
+
+    /**
+     * Reads a page of the results after the position of a token, instead of skipping the results before it. The page
+     * is selected with a range predicate on the sort keys and _id (see {@link PageToken}), so every page costs about
+     * the same, given an index on the sort keys followed by _id. Skip and limit of this result are ignored.
+     * @param size  The number of models per page
+     * @param token The token of the previous page, or null for the first page
+     * @return      The page, or null when it could not be read
+     * @throws IllegalArgumentException When the token is malformed or was made for another sort order
+     */
+    public ResultPage<T> page(int size, String token){
+        if(size < 1) throw new IllegalArgumentException("Page size must be positive: "+size);
+        if(collection == null){
+            logger.warning("Can not page results of "+type.getSimpleName()+" without the collection");
+            return null;
+        }
+        Document seekSort = PageToken.seekSort(sort);
+        Document pageFilter = filter != null ? filter : new Document();
+        if(token != null){
+            Document predicate = PageToken.parse(token, seekSort).predicate(seekSort);
+            pageFilter = pageFilter.isEmpty() ? predicate : new Document("$and", Arrays.asList(pageFilter, predicate));
+        }
+
+        DatabaseResult<T> page = new DatabaseResult<>(type, collection, pageFilter).sort(seekSort).limit(size + 1);
+        if(projection != null) page.projection(withSortKeys(projection, seekSort));
+        page.profile = profile;
+        if(lazy) page.lazy();
+
+        List<T> items = new ArrayList<>(size + 1);
+        page.forEach(model -> {
+            if(model != null) items.add(model);
+        });
+        String nextToken = null;
+        if(items.size() > size){
+            items.remove(size);
+            nextToken = PageToken.after(seekSort, items.get(size - 1)).toString();
+        }
+        return new ResultPage<>(items, nextToken);
+    }
+
+    /**
+     * Adds the sort keys to an inclusive projection, the token of a page is made from their values
+     */
+    private static Document withSortKeys(Document projection, Document seekSort){
+        for(Object value : projection.values()){
+            boolean include = value instanceof Number ? ((Number) value).intValue() != 0 : Boolean.TRUE.equals(value);
+            if(include){
+                Document withKeys = new Document(projection);
+                for(String key : seekSort.keySet()) withKeys.put(key, 1);
+                return withKeys;
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Counts the results, taking skip and limit into account
+     * @return The number of results, or -1 when the collection of this result is not known
+     */
+    public long count(){
+        if(collection == null) return -1;
+        try {
+            CountOptions options = new CountOptions().skip(skip);
+            if(limit != 0) options.limit(Math.abs(limit));
+            return collection.count(filter != null ? filter : new Document(), options);
+        } catch (Exception e) {
+            logger.warning("Could not count results of "+type.getSimpleName()+", reason: "+e.getMessage());
+            return -1;
+        }
+    }
+
+    private void logSlowQuery(String operation, long elapsed){
+        String name = type.getSimpleName();
+        Document explainCommand = collection != null ? SlowQueryLog.findCommand(collection.getNamespace().getCollectionName(), filter, sort, projection, skip, limit) : null;
+        SlowQueryLog.record(name, operation, filter, sort, projection, skip, limit, elapsed, explainCommand);
+    }
+
+    /**
+     * Returns the model for a row of the cursor, which is a model already when it was decoded by the ModelCodec, or
+     * raw BSON when the result is read lazily
+     */
+    private T hydrate(Object row){
+        T model = toModel(row);
+        if(model != null && profile != null) model.setViewProfile(profile);
+        return model;
+    }
+
+    private T toModel(Object row){
+        if(type.isInstance(row)) return type.cast(row);
+        try {
+            if(row instanceof RawBsonDocument){
+                LazyDocument document = new LazyDocument((RawBsonDocument) row);
+                T model = ModelFactory.hydrate(type, document);
+                model.setDecodedSize(document.getEncodedSize());
+                return model;
+            }
+            return ModelFactory.hydrate(type, (Document) row);
+        } catch (Exception e) {
+            logger.warning("Could not create new instance of "+type.getSimpleName()+", reason: "+e.getMessage());
+        }
+        return null;
+    }
+
+    private static long sizeOf(Object row){
+        if(row instanceof Model) return DatabaseMetrics.sizeOf((Model) row);
+        if(row instanceof RawBsonDocument) return DatabaseMetrics.isTrackingBytes() ? ((RawBsonDocument) row).getByteBuffer().remaining() : 0;
+        return DatabaseMetrics.sizeOf((Document) row);
+    }
+
+    /**
+     * Iterates the cursor, recording the time spent waiting on it, the time to the first document and the documents
+     * read under the "iterate" operation of {@link DatabaseMetrics} once the cursor is exhausted or closed
+     */
+    private class DatabaseResultIterator implements Iterator<T>, AutoCloseable {
 
-        private MongoCursor<Document> cursor;
+        private MongoCursor<?> cursor;
+        private final long opened = System.nanoTime();
+        private long cursorNanos = 0;
+        private long documents = 0;
+        private long bytes = 0;
+        private boolean failed = false;
+        private boolean recorded = false;
 
         public DatabaseResultIterator() {
-            this.cursor = documentFindIterable.iterator();
+            try {
+                this.cursor = findIterable.iterator();
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            } finally {
+                cursorNanos += System.nanoTime() - opened;
+                if(failed) record();
+            }
         }
 
         @Override
         public boolean hasNext() {
-            return cursor.hasNext();
+            long start = System.nanoTime();
+            boolean hasNext = false;
+            try {
+                hasNext = cursor.hasNext();
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            } finally {
+                cursorNanos += System.nanoTime() - start;
+                if(!hasNext) record();
+            }
+            return hasNext;
         }
 
         @Override
         public T next() {
-            if(cursor.hasNext()) {
-                Document document = cursor.next();
-                if(document != null){
-                    try {
-                        T next = type.newInstance();
-                        next.setDocument(document);
-                        return next;
-                    } catch (Exception e) {
-                        logger.warning("Could not create new instance of "+type.getSimpleName()+", reason: "+e.getMessage());
-                    }
-                }
+            Object row = nextRow();
+            if(row != null){
+                return hydrate(row);
             }
             return null;
         }
 
+        private Object nextRow() {
+            long start = System.nanoTime();
+            Object row = null;
+            try {
+                if(cursor.hasNext()) row = cursor.next();
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            } finally {
+                long end = System.nanoTime();
+                cursorNanos += end - start;
+                if(row == null){
+                    record();
+                } else {
+                    if(documents++ == 0) DatabaseMetrics.recordFirstDocument(type.getSimpleName(), end - opened);
+                    bytes += sizeOf(row);
+                }
+            }
+            return row;
+        }
+
         @Override
         public void remove() {
             cursor.remove();
         }
 
         @Override
-        public void forEachRemaining(Consumer action) {
-            // Not implemented
+        public void forEachRemaining(Consumer<? super T> action) {
+            Object row;
+            while((row = nextRow()) != null){
+                action.accept(hydrate(row));
+            }
+        }
+
+        @Override
+        public void close() {
+            record();
+            if(cursor != null) cursor.close();
+        }
+
+        private void record(){
+            if(recorded) return;
+            recorded = true;
+            DatabaseMetrics.record(type.getSimpleName(), DatabaseMetrics.ITERATE, cursorNanos, failed, documents, bytes);
+            if(SlowQueryLog.isSlow(cursorNanos)) logSlowQuery("query", cursorNanos);
+        }
+
+    }
+
+    /**
+     * Reads the cursor on a background thread into a bounded queue, the caller takes the models from the queue. The
+     * reader stops and closes the cursor when the iterator is closed, or when the caller has not taken a model for the
+     * idle timeout while the queue is full. An abandoned read is not a normal end: once the queued models are taken,
+     * the caller gets an IllegalStateException.
+     */
+    private class PrefetchIterator implements Iterator<T>, AutoCloseable {
+
+        private final BlockingQueue<Object> queue;
+        private final long idleTimeout = Database.getConfig().getPrefetchIdleTimeout();
+        private volatile boolean closed = false;
+        private volatile boolean abandoned = false;
+        private Object next;
+        private boolean done = false;
+
+        public PrefetchIterator() {
+            int size = batchSize;
+            if(size == 0){
+                size = adaptiveBatchSize();
+                if(size != 0) findIterable.batchSize(size);
+            }
+            // The driver returns 101 documents in the first batch by default
+            this.queue = new ArrayBlockingQueue<>(Math.max(size != 0 ? size : 101, 1) * Database.getConfig().getPrefetchBatches());
+            prefetchExecutor.execute(this::read);
+        }
+
+        private void read(){
+            DatabaseResultIterator source = null;
+            try {
+                source = new DatabaseResultIterator();
+                Object row;
+                while(!closed && (row = source.nextRow()) != null){
+                    T model = hydrate(row);
+                    if(!offer(model != null ? model : NULL)) return;
+                }
+                offer(END);
+            } catch (RuntimeException | Error e) {
+                offer(new Failure(e));
+            } finally {
+                if(source != null) source.close();
+            }
+        }
+
+        private boolean offer(Object item){
+            long waited = 0;
+            try {
+                while(!closed){
+                    if(queue.offer(item, 100, TimeUnit.MILLISECONDS)) return true;
+                    waited += 100;
+                    if(idleTimeout > 0 && waited >= idleTimeout){
+                        logger.info("Abandoned prefetching "+type.getSimpleName()+", no results taken for "+waited+"ms");
+                        abandoned = true;
+                        closed = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(next == null) next = take();
+            return next != END;
+        }
+
+        @Override
+        public T next() {
+            if(!hasNext()) return null;
+            Object item = next;
+            next = null;
+            return item == NULL ? null : type.cast(item);
+        }
+
+        private Object take(){
+            if(done) return END;
+            Object item;
+            try {
+                // Polled, so a reader which abandoned the cursor can not leave the caller waiting forever
+                while((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null){
+                    if(abandoned){
+                        close();
+                        throw new IllegalStateException("Prefetching "+type.getSimpleName()+" was abandoned after "+idleTimeout+"ms without results being taken, the result is incomplete");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while waiting for results of "+type.getSimpleName(), e);
+            }
+            if(item == END) done = true;
+            if(item instanceof Failure){
+                close();
+                Throwable cause = ((Failure) item).cause;
+                if(cause instanceof Error) throw (Error) cause;
+                throw (RuntimeException) cause;
+            }
+            return item;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            done = true;
+            next = END;
+            queue.clear();
+        }
+
+    }
+
+    private static class Failure {
+
+        private final Throwable cause;
+
+        private Failure(Throwable cause){
+            this.cause = cause;
+        }
+
+    }
+
+    /**
+     * Reads the cursor on the thread which holds it. trySplit takes a growing batch of rows from the cursor, models
+     * are created from documents by whichever thread consumes the batch.
+     */
+    private class DatabaseResultSpliterator implements Spliterator<T> {
+
+        private static final int BATCH_INCREMENT = 256;
+        private static final int MAX_BATCH = 8192;
+
+        private DatabaseResultIterator iterator;
+        private long produced = 0;
+        private int batch = 0;
+        private boolean closed = false;
+
+        private DatabaseResultIterator iterator(){
+            if(iterator == null && !closed) iterator = new DatabaseResultIterator();
+            return iterator;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            DatabaseResultIterator it = iterator();
+            Object row = it != null ? it.nextRow() : null;
+            if(row == null){
+                close();
+                return false;
+            }
+            produced++;
+            if(isLimitReached()) close();
+            action.accept(hydrate(row));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            DatabaseResultIterator it = iterator();
+            if(it == null) return;
+            try {
+                it.forEachRemaining(action);
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            DatabaseResultIterator it = iterator();
+            if(it == null) return null;
+            int size = Math.min(batch + BATCH_INCREMENT, MAX_BATCH);
+            Object[] rows = new Object[size];
+            int read = 0;
+            Object row;
+            while(read < size && (row = it.nextRow()) != null){
+                rows[read++] = row;
+            }
+            if(read == 0){
+                close();
+                return null;
+            }
+            batch = read;
+            produced += read;
+            if(isLimitReached()) close();
+            return new RowBatchSpliterator(rows, read);
+        }
+
+        @Override
+        public long estimateSize() {
+            if(closed) return 0;
+            return limit > 0 ? Math.max(0, limit - produced) : Long.MAX_VALUE;
+        }
+
+        /**
+         * The cursor has nothing more to return, close it without waiting for another pull which may never come
+         */
+        private boolean isLimitReached(){
+            return limit > 0 && produced >= limit;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED;
+        }
+
+        private void close(){
+            closed = true;
+            if(iterator != null){
+                iterator.close();
+                iterator = null;
+            }
+        }
+
+    }
+
+    /**
+     * A batch of rows taken from the cursor, documents are turned into models when consumed
+     */
+    private class RowBatchSpliterator implements Spliterator<T> {
+
+        private final Object[] rows;
+        private int index;
+        private final int end;
+
+        private RowBatchSpliterator(Object[] rows, int end){
+            this(rows, 0, end);
+        }
+
+        private RowBatchSpliterator(Object[] rows, int index, int end){
+            this.rows = rows;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if(index >= end) return false;
+            Object row = rows[index];
+            rows[index++] = null;
+            action.accept(hydrate(row));
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int mid = (index + end) >>> 1;
+            if(mid <= index) return null;
+            RowBatchSpliterator prefix = new RowBatchSpliterator(rows, index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
         }
 
     }
@@ -0,0 +1,57 @@
+package mbp.common.db;
+
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cheap estimate of the BSON size of a document, without encoding it. Strings are counted as one byte per char, so
+ * the estimate is low for non-ascii text.
+ */
+public final class DocumentSize {
+
+    private DocumentSize(){
+    }
+
+    /**
+     * Estimates the encoded size of a document or map
+     * @param document  The document to estimate
+     * @return          The estimated size in bytes
+     */
+    public static long estimate(Map<String, ?> document){
+        if(document == null) return 0;
+        long size = 5;
+        for(Map.Entry<String, ?> entry : document.entrySet()){
+            size += 2 + entry.getKey().length() + estimateValue(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the encoded size of a single value
+     * @param value The value to estimate
+     * @return      The estimated size in bytes
+     */
+    public static long estimateValue(Object value){
+        if(value == null || value instanceof Boolean) return 1;
+        if(value instanceof String) return 5 + ((String) value).length();
+        if(value instanceof Integer) return 4;
+        if(value instanceof Long || value instanceof Double || value instanceof Date) return 8;
+        if(value instanceof ObjectId) return 12;
+        if(value instanceof Map) return estimate((Map<String, ?>) value);
+        if(value instanceof List){
+            List list = (List) value;
+            long size = 5;
+            for(int i = 0; i < list.size(); i++){
+                size += 2 + (i < 10 ? 1 : i < 100 ? 2 : i < 1000 ? 3 : 6) + estimateValue(list.get(i));
+            }
+            return size;
+        }
+        if(value instanceof Binary) return 5 + ((Binary) value).length();
+        return 16;
+    }
+
+}
@@ -0,0 +1,333 @@
+package mbp.common.db;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of loaded models by id, used by {@link Database} for collections which have been configured.
+ * Every collection has its own bounds: a maximum number of models, a maximum estimated size and a time to live.
+ * When full, a new model only replaces the least recently used model if it has been requested more often, so a scan
+ * over rarely used models does not flush the frequently used ones.
+ * <p>
+ * The cache holds copies of the documents. Each lookup returns a new instance, so callers may change the returned
+ * model without affecting the cache. Writes through Database invalidate the cached models, writes from other
+ * processes are picked up when the cached model expires.
+ */
+public class EntityCache {
+
+    private static final Logger logger = Logger.getLogger(EntityCache.class.getName());
+
+    private final ConcurrentHashMap<String, Region> regions = new ConcurrentHashMap<>();
+
+    /**
+     * Enables caching for the collection of a model class
+     * @param c         The model class
+     * @param config    The bounds of the cache, or null to disable caching for the collection
+     */
+    public void configure(Class<? extends Model> c, EntityCacheConfig config){
+        configure(c.getSimpleName(), config);
+    }
+
+    /**
+     * Enables caching for a collection
+     * @param collection    The collection name
+     * @param config        The bounds of the cache, or null to disable caching for the collection
+     */
+    public void configure(String collection, EntityCacheConfig config){
+        if(config == null){
+            regions.remove(collection);
+        } else {
+            regions.put(collection, new Region(collection, config));
+        }
+    }
+
+    /**
+     * Returns a copy of a cached model
+     * @param c         The class of the model
+     * @param objectId  The id of the model
+     * @return          A new instance holding a copy of the cached document, or null when it is not cached
+     */
+    public <T extends Model> T get(Class<T> c, ObjectId objectId){
+        Region region = regions.get(c.getSimpleName());
+        if(region == null || objectId == null) return null;
+        Document document = region.get(objectId);
+        if(document == null) return null;
+        try {
+            return ModelFactory.hydrate(c, copy(document));
+        } catch (Exception e) {
+            logger.warning("Could not create new instance of "+c.getSimpleName()+", reason: "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the invalidation generation of a collection, which changes on every invalidation. Read it before
+     * querying and pass it to {@link #put(Model, long)}, so a model read before a concurrent write is not cached.
+     * @param collection    The collection name
+     * @return              The current generation
+     */
+    public long generation(String collection){
+        Region region = regions.get(collection);
+        return region != null ? region.generation() : 0;
+    }
+
+    /**
+     * Caches a copy of a model which was read from the database, unless the collection was invalidated since the
+     * generation was read
+     * @param model         The model to cache
+     * @param generation    The generation of the collection before the model was read, see {@link #generation(String)}
+     */
+    public void put(Model model, long generation){
+        if(model == null || model.getObjectId() == null || !model.hasDocument()) return;
+        Region region = regions.get(model.getClassName());
+        if(region == null || region.generation() != generation) return;
+        Document document = copy(model.document);
+        region.put(model.getObjectId(), document, DocumentSize.estimate(document), generation);
+    }
+
+    /**
+     * Removes a single model
+     * @param collection    The collection name of the model
+     * @param objectId      The id of the model
+     */
+    public void invalidate(String collection, ObjectId objectId){
+        Region region = regions.get(collection);
+        if(region != null && objectId != null) region.remove(objectId);
+    }
+
+    /**
+     * Removes all models of a collection
+     * @param collection    The collection name
+     */
+    public void invalidateAll(String collection){
+        Region region = regions.get(collection);
+        if(region != null) region.clear();
+    }
+
+    /**
+     * Whether models of a collection are cached
+     * @param collection    The collection name
+     * @return              True when the collection has been configured
+     */
+    public boolean isEnabled(String collection){
+        return regions.containsKey(collection);
+    }
+
+    /**
+     * @return The counters of every configured collection
+     */
+    public List<EntityCacheStats> getStats(){
+        List<EntityCacheStats> stats = new ArrayList<>(regions.size());
+        for(Region region : regions.values()){
+            stats.add(region.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Deep copies a document, so the copy shares no mutable values with the original
+     * @param document  The document to copy
+     * @return          The copy
+     */
+    static Document copy(Document document){
+        Document copy = new Document();
+        for(Map.Entry<String, Object> entry : document.entrySet()){
+            copy.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return copy;
+    }
+
+    static Object copyValue(Object value){
+        if(value instanceof Document) return copy((Document) value);
+        if(value instanceof Map){
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()){
+                copy.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return copy;
+        }
+        if(value instanceof List){
+            List<?> list = (List<?>) value;
+            List<Object> copy = new ArrayList<>(list.size());
+            for(Object item : list) copy.add(copyValue(item));
+            return copy;
+        }
+        if(value instanceof Date) return new Date(((Date) value).getTime());
+        return value;
+    }
+
+    private static class Entry {
+        private final Document document;
+        private final long weight;
+        private final long loaded;
+
+        private Entry(Document document, long weight, long loaded){
+            this.document = document;
+            this.weight = weight;
+            this.loaded = loaded;
+        }
+    }
+
+    private static class Region {
+
+        private final String collection;
+        private final EntityCacheConfig config;
+        private final LinkedHashMap<ObjectId, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+
+        private long weight = 0;
+        private long generation = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+        private long rejections = 0;
+
+        private Region(String collection, EntityCacheConfig config){
+            this.collection = collection;
+            this.config = config;
+            this.sketch = new FrequencySketch(config.getMaximumSize() > 0 ? config.getMaximumSize() : 1024);
+        }
+
+        private synchronized Document get(ObjectId objectId){
+            sketch.increment(objectId);
+            Entry entry = entries.get(objectId);
+            if(entry != null && isExpired(entry, System.currentTimeMillis())){
+                removeEntry(objectId);
+                entry = null;
+            }
+            if(entry == null){
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.document;
+        }
+
+        private synchronized long generation(){
+            return generation;
+        }
+
+        private synchronized void put(ObjectId objectId, Document document, long documentWeight, long readGeneration){
+            // Invalidated while the document was being read, it may be older than the stored version
+            if(readGeneration != generation) return;
+            if(config.getMaximumWeight() > 0 && documentWeight > config.getMaximumWeight()) return;
+
+            removeEntry(objectId);
+            int candidateFrequency = sketch.frequency(objectId);
+            Iterator<Map.Entry<ObjectId, Entry>> eldest = entries.entrySet().iterator();
+            long now = System.currentTimeMillis();
+            // Admission is decided on all victims first, a rejected model must not evict anything
+            List<ObjectId> victims = new ArrayList<>();
+            long freedWeight = 0;
+            while(isFull(1 - victims.size(), documentWeight - freedWeight) && eldest.hasNext()){
+                Map.Entry<ObjectId, Entry> victim = eldest.next();
+                if(!isExpired(victim.getValue(), now) && sketch.frequency(victim.getKey()) >= candidateFrequency){
+                    rejections++;
+                    return;
+                }
+                victims.add(victim.getKey());
+                freedWeight += victim.getValue().weight;
+            }
+            for(ObjectId victim : victims){
+                removeEntry(victim);
+                evictions++;
+            }
+            entries.put(objectId, new Entry(document, documentWeight, now));
+            weight += documentWeight;
+        }
+
+        private synchronized void remove(ObjectId objectId){
+            generation++;
+            removeEntry(objectId);
+        }
+
+        private synchronized void clear(){
+            generation++;
+            entries.clear();
+            weight = 0;
+        }
+
+        private synchronized EntityCacheStats getStats(){
+            return new EntityCacheStats(collection, hits, misses, evictions, rejections, entries.size(), weight);
+        }
+
+        private void removeEntry(ObjectId objectId){
+            Entry entry = entries.remove(objectId);
+            if(entry != null) weight -= entry.weight;
+        }
+
+        private boolean isFull(int extraEntries, long extraWeight){
+            return (config.getMaximumSize() > 0 && entries.size() + extraEntries > config.getMaximumSize())
+                    || (config.getMaximumWeight() > 0 && weight + extraWeight > config.getMaximumWeight());
+        }
+
+        private boolean isExpired(Entry entry, long now){
+            return config.getExpireAfterWrite() > 0 && now - entry.loaded > config.getExpireAfterWrite();
+        }
+
+    }
+
+    /**
+     * Count-min sketch of recent lookup frequencies, counters are halved periodically so old popularity fades
+     */
+    private static class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final int[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(int expectedSize){
+            int width = Integer.highestOneBit(Math.max(64, expectedSize) - 1) << 1;
+            counters = new int[DEPTH][width];
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        private void increment(Object key){
+            int hash = key.hashCode();
+            for(int i = 0; i < DEPTH; i++){
+                int index = index(hash, i);
+                if(counters[i][index] < MAX_COUNT) counters[i][index]++;
+            }
+            if(++additions >= sampleSize) reset();
+        }
+
+        private int frequency(Object key){
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for(int i = 0; i < DEPTH; i++){
+                frequency = Math.min(frequency, counters[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row){
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private void reset(){
+            for(int[] row : counters){
+                for(int i = 0; i < row.length; i++) row[i] >>>= 1;
+            }
+            additions /= 2;
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+package mbp.common.db;
+
+/**
+ * Bounds of the entity cache of a single collection, see {@link EntityCache#configure(Class, EntityCacheConfig)}
+ */
+public class EntityCacheConfig {
+
+    private int maximumSize = 10000;
+    private long maximumWeight = 0;
+    private long expireAfterWrite = 10 * 60 * 1000;
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @param maximumSize   The maximum number of cached models, 0 for no limit
+     */
+    public void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @param maximumWeight The maximum estimated size in bytes of all cached models together, 0 for no limit
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+    }
+
+    public long getExpireAfterWrite() {
+        return expireAfterWrite;
+    }
+
+    /**
+     * @param expireAfterWrite  The time in milliseconds a model stays cached after it was loaded, 0 to never expire.
+     *                          Writes from other processes are only picked up after this time.
+     */
+    public void setExpireAfterWrite(long expireAfterWrite) {
+        this.expireAfterWrite = expireAfterWrite;
+    }
+
+}
@@ -0,0 +1,73 @@
+package mbp.common.db;
+
+/**
+ * Snapshot of the counters of the entity cache of one collection
+ */
+public class EntityCacheStats {
+
+    private final String collection;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long rejections;
+    private final int size;
+    private final long estimatedBytes;
+
+    public EntityCacheStats(String collection, long hits, long misses, long evictions, long rejections, int size, long estimatedBytes){
+        this.collection = collection;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.size = size;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The share of lookups answered from the cache, between 0 and 1
+     */
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return The number of models removed to make room for more frequently used models
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of models not admitted because they were used less than the model they would replace
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return collection + ": hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + ", bytes=" + estimatedBytes;
+    }
+
+}
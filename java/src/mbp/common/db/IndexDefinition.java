@@ -0,0 +1,189 @@
+package mbp.common.db;
+
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Declares an index on a collection, see {@link Model#getIndexDefinitions()} and
+ * {@link Database#ensureIndexes(Class, java.util.List)}. Fields are indexed in the order they are added:
+ * <pre>
+ *     IndexDefinition.ascending("supid").ascending("supplier")
+ *     IndexDefinition.ascending("email").unique().sparse()
+ *     IndexDefinition.ascending("creationDate").expireAfter(30, TimeUnit.DAYS)
+ * </pre>
+ */
+public class IndexDefinition {
+
+    private final Document keys = new Document();
+    private String name;
+    private boolean unique = false;
+    private boolean sparse = false;
+    private Long expireAfterSeconds;
+
+    public static IndexDefinition ascending(String... fields){
+        IndexDefinition definition = new IndexDefinition();
+        for(String field : fields) definition.ascending(field);
+        return definition;
+    }
+
+    public static IndexDefinition descending(String... fields){
+        IndexDefinition definition = new IndexDefinition();
+        for(String field : fields) definition.descending(field);
+        return definition;
+    }
+
+    public static IndexDefinition text(String... fields){
+        IndexDefinition definition = new IndexDefinition();
+        for(String field : fields) definition.keys.append(field, "text");
+        return definition;
+    }
+
+    public IndexDefinition ascending(String field){
+        keys.append(field, 1);
+        return this;
+    }
+
+    public IndexDefinition descending(String field){
+        keys.append(field, -1);
+        return this;
+    }
+
+    public IndexDefinition unique(){
+        this.unique = true;
+        return this;
+    }
+
+    /**
+     * Only index documents which have the indexed fields
+     */
+    public IndexDefinition sparse(){
+        this.sparse = true;
+        return this;
+    }
+
+    /**
+     * Let the server remove documents after a time, counted from the date in the (single) indexed field
+     */
+    public IndexDefinition expireAfter(long duration, TimeUnit unit){
+        this.expireAfterSeconds = unit.toSeconds(duration);
+        return this;
+    }
+
+    public IndexDefinition name(String name){
+        this.name = name;
+        return this;
+    }
+
+    public Document getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return The given name, or the name the server generates for these keys
+     */
+    public String getName() {
+        if(name != null) return name;
+        StringBuilder builder = new StringBuilder();
+        for(Map.Entry<String, Object> key : keys.entrySet()){
+            if(builder.length() > 0) builder.append("_");
+            builder.append(key.getKey()).append("_").append(key.getValue());
+        }
+        return builder.toString();
+    }
+
+    public boolean isUnique() {
+        return unique;
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    public Long getExpireAfterSeconds() {
+        return expireAfterSeconds;
+    }
+
+    public IndexOptions toIndexOptions(){
+        IndexOptions options = new IndexOptions().name(getName()).unique(unique).sparse(sparse).background(true);
+        if(expireAfterSeconds != null) options.expireAfter(expireAfterSeconds, TimeUnit.SECONDS);
+        return options;
+    }
+
+    /**
+     * Whether an index as listed by the server has the same keys as this definition
+     * @param index The index description from listIndexes
+     * @return      True when fields, order and directions match
+     */
+    public boolean hasSameKeys(Document index){
+        Document indexKeys = index.get("key", Document.class);
+        if(indexKeys != null && indexKeys.containsKey("_fts")) return hasSameTextKeys(indexKeys, index.get("weights", Document.class));
+        if(indexKeys == null || indexKeys.size() != keys.size()) return false;
+        Iterator<Map.Entry<String, Object>> other = indexKeys.entrySet().iterator();
+        for(Map.Entry<String, Object> key : keys.entrySet()){
+            Map.Entry<String, Object> otherKey = other.next();
+            if(!key.getKey().equals(otherKey.getKey()) || !Objects.equals(direction(key.getValue()), direction(otherKey.getValue()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The server lists the text fields of a text index as {_fts: "text", _ftsx: 1} and names them in weights, the
+     * text fields are compared as a set, the other keys in order
+     */
+    private boolean hasSameTextKeys(Document indexKeys, Document weights){
+        if(weights == null) return false;
+        Set<String> textFields = new HashSet<>();
+        List<Map.Entry<String, Object>> otherKeys = new ArrayList<>();
+        for(Map.Entry<String, Object> key : keys.entrySet()){
+            if("text".equals(key.getValue())){
+                textFields.add(key.getKey());
+            } else {
+                otherKeys.add(key);
+            }
+        }
+        if(!textFields.equals(weights.keySet())) return false;
+        Iterator<Map.Entry<String, Object>> other = otherKeys.iterator();
+        for(Map.Entry<String, Object> indexKey : indexKeys.entrySet()){
+            if(indexKey.getKey().equals("_fts") || indexKey.getKey().equals("_ftsx")) continue;
+            if(!other.hasNext()) return false;
+            Map.Entry<String, Object> key = other.next();
+            if(!key.getKey().equals(indexKey.getKey()) || !Objects.equals(direction(key.getValue()), direction(indexKey.getValue()))) return false;
+        }
+        return !other.hasNext();
+    }
+
+    /**
+     * Describes how an index as listed by the server differs in options from this definition
+     * @param index The index description from listIndexes
+     * @return      The differences, or null when the options match
+     */
+    public String getOptionDifferences(Document index){
+        StringBuilder builder = new StringBuilder();
+        if(unique != Boolean.TRUE.equals(index.get("unique"))) builder.append(" unique=").append(unique);
+        if(sparse != Boolean.TRUE.equals(index.get("sparse"))) builder.append(" sparse=").append(sparse);
+        Object expire = index.get("expireAfterSeconds");
+        Long indexExpire = expire instanceof Number ? ((Number) expire).longValue() : null;
+        if(expireAfterSeconds == null ? indexExpire != null : !expireAfterSeconds.equals(indexExpire)) builder.append(" expireAfterSeconds=").append(expireAfterSeconds);
+        return builder.length() > 0 ? "expected" + builder : null;
+    }
+
+    private static Object direction(Object value){
+        if(value instanceof Number) return ((Number) value).doubleValue() < 0 ? -1 : 1;
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " " + keys.toJson() + (unique ? " unique" : "") + (sparse ? " sparse" : "") + (expireAfterSeconds != null ? " ttl=" + expireAfterSeconds + "s" : "");
+    }
+
+}
@@ -0,0 +1,227 @@
+package mbp.common.db;
+
+import org.bson.BSONException;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a JSON array of documents straight to a writer or stream, each document is encoded by a BSON JsonWriter
+ * without building a string for it. The output is the same as joining Document.toJson() of each document.
+ * <p>
+ * The output is flushed every flush size characters, so a client receives the array in chunks and memory use does
+ * not depend on the number of documents. When the output fails, usually because the client disconnected, the writer
+ * stops: further writes are ignored and {@link #isAborted()} returns true. A document which can not be encoded is
+ * not an output failure, its BSONException is thrown to the caller.
+ */
+public class JsonStreamWriter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(JsonStreamWriter.class.getName());
+
+    public static final int DEFAULT_FLUSH_SIZE = 64 * 1024;
+
+    private static final DocumentCodec documentCodec = new DocumentCodec();
+    // Document.toJson() encodes as a collectible document, which writes _id first
+    private static final EncoderContext encoderContext = EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+
+    private final CountingWriter writer;
+    private final GZIPOutputStream gzip;
+    private final JsonWriterSettings settings = new JsonWriterSettings();
+    private final int flushSize;
+    private long flushedAt = 0;
+    private long documents = 0;
+    private boolean started = false;
+    private boolean ended = false;
+    private boolean aborted = false;
+
+    public JsonStreamWriter(Writer writer){
+        this(writer, DEFAULT_FLUSH_SIZE);
+    }
+
+    /**
+     * @param writer    The writer to write to, it is flushed but not closed
+     * @param flushSize The number of characters after which the output is flushed
+     */
+    public JsonStreamWriter(Writer writer, int flushSize){
+        this.writer = new CountingWriter(writer);
+        this.gzip = null;
+        this.flushSize = flushSize;
+    }
+
+    public JsonStreamWriter(OutputStream stream, boolean gzip) throws IOException {
+        this(stream, gzip, DEFAULT_FLUSH_SIZE);
+    }
+
+    /**
+     * @param stream    The stream to write UTF-8 to, it is flushed but not closed
+     * @param gzip      Whether to compress the output, each flush ends a gzip block so the client can decode it
+     * @param flushSize The number of characters after which the output is flushed
+     */
+    public JsonStreamWriter(OutputStream stream, boolean gzip, int flushSize) throws IOException {
+        OutputStream target = stream;
+        if(gzip){
+            this.gzip = new GZIPOutputStream(stream, 8192, true);
+            target = this.gzip;
+        } else {
+            this.gzip = null;
+        }
+        this.writer = new CountingWriter(new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 8192));
+        this.flushSize = flushSize;
+    }
+
+    /**
+     * Writes the next document of the array, the opening bracket is written before the first one
+     * @param document  The document
+     * @return          False when the output has failed and the caller should stop
+     */
+    public boolean write(Document document){
+        if(aborted) return false;
+        if(ended) throw new IllegalStateException("The array has already been ended");
+        try {
+            writer.write(started ? ',' : '[');
+            started = true;
+            documentCodec.encode(new JsonWriter(writer, settings), document, encoderContext);
+            documents++;
+            if(writer.count - flushedAt >= flushSize) flush();
+        } catch (IOException e) {
+            abort(e);
+        } catch (BSONException e) {
+            // JsonWriter wraps the errors of the output, any other cause is an encoding error
+            aborted = true;
+            if(!(e.getCause() instanceof IOException)) throw e;
+            abort(e);
+        }
+        return !aborted;
+    }
+
+    /**
+     * Writes the next document of the array with the defaults of a schema, see {@link SerializationSchema}
+     * @param document  The document, which is not changed
+     * @param schema    The schema, or null to write the document as is
+     * @return          False when the output has failed and the caller should stop
+     */
+    public boolean write(Document document, SerializationSchema schema){
+        return write(schema != null ? schema.apply(document) : document);
+    }
+
+    /**
+     * Writes the next element of the array as already serialized JSON
+     * @param json  The JSON of a document
+     * @return      False when the output has failed and the caller should stop
+     */
+    public boolean writeRaw(String json){
+        if(aborted) return false;
+        if(ended) throw new IllegalStateException("The array has already been ended");
+        try {
+            writer.write(started ? ',' : '[');
+            started = true;
+            writer.write(json);
+            documents++;
+            if(writer.count - flushedAt >= flushSize) flush();
+        } catch (IOException e) {
+            abort(e);
+        }
+        return !aborted;
+    }
+
+    /**
+     * Writes the closing bracket, or an empty array when nothing was written, and flushes the output
+     * @return  False when the output has failed
+     */
+    public boolean end(){
+        if(aborted || ended) return !aborted;
+        ended = true;
+        try {
+            writer.write(started ? "]" : "[]");
+            if(gzip != null){
+                writer.flush();
+                gzip.finish();
+            }
+            flush();
+        } catch (IOException e) {
+            abort(e);
+        }
+        return !aborted;
+    }
+
+    /**
+     * @return Whether writing failed, for example because the client disconnected
+     */
+    public boolean isAborted(){
+        return aborted;
+    }
+
+    /**
+     * @return The number of documents written
+     */
+    public long getDocuments(){
+        return documents;
+    }
+
+    /**
+     * @return The number of characters written
+     */
+    public long getCharacters(){
+        return writer.count;
+    }
+
+    /**
+     * Ends the array when it was not ended yet. The underlying writer or stream is not closed.
+     */
+    @Override
+    public void close() {
+        end();
+    }
+
+    private void flush() throws IOException {
+        writer.flush();
+        flushedAt = writer.count;
+    }
+
+    private void abort(Exception e){
+        aborted = true;
+        logger.info("Stopped writing json after "+documents+" documents: "+(e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+    }
+
+    private static class CountingWriter extends FilterWriter {
+
+        private long count = 0;
+
+        private CountingWriter(Writer out){
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            out.write(string, offset, length);
+            count += length;
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+package mbp.common.db;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A document read from the database which keeps the raw BSON and decodes a field when it is first read, the decoded
+ * value is cached. Reading fields, containsKey and size work on the raw bytes. Everything which writes, or exposes
+ * the document as a whole (keySet, entrySet, values, equals, toJson), first decodes the remaining fields into a
+ * regular document; values which were already read keep their instance, so changes made to a list or map that was
+ * read before are kept.
+ * <p>
+ * See {@link DatabaseResult#lazy()} and {@link Database#get(org.bson.types.ObjectId, Class, boolean)}, for pages which
+ * read a few fields of large documents.
+ */
+public class LazyDocument extends Document {
+
+    private static final DocumentCodec documentCodec = new DocumentCodec();
+    private static final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    private transient RawBsonDocument raw;
+    private final int encodedSize;
+
+    public LazyDocument(RawBsonDocument raw){
+        this.raw = raw;
+        this.encodedSize = raw.getByteBuffer().remaining();
+    }
+
+    /**
+     * @return Whether the document still reads from the raw bytes
+     */
+    public boolean isLazy(){
+        return raw != null;
+    }
+
+    /**
+     * @return The size in bytes of the raw document
+     */
+    public int getEncodedSize(){
+        return encodedSize;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if(raw == null || super.containsKey(key)) return super.get(key);
+        if(!(key instanceof String)) return null;
+        BsonValue value = raw.get(key);
+        if(value == null) return null;
+        Object decoded = decode((String) key, value);
+        super.put((String) key, decoded);
+        return decoded;
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> clazz) {
+        return clazz.cast(get(key));
+    }
+
+    // Not annotated, older drivers do not have this method on Document
+    public <T> T get(Object key, T defaultValue) {
+        Object value = get(key);
+        return value == null ? defaultValue : (T) value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if(raw == null || super.containsKey(key)) return super.containsKey(key);
+        return raw.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return raw != null ? raw.size() : super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return raw != null ? raw.isEmpty() : super.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        materialize();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        materialize();
+        return super.put(key, value);
+    }
+
+    @Override
+    public Document append(String key, Object value) {
+        materialize();
+        return super.append(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map) {
+        materialize();
+        super.putAll(map);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        materialize();
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        raw = null;
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        materialize();
+        return super.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        materialize();
+        return super.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        materialize();
+        return super.entrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        materialize();
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        materialize();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+
+    /**
+     * Decodes all fields which were not read yet, in the order of the raw document, after which the raw bytes are
+     * released
+     */
+    private void materialize(){
+        if(raw == null) return;
+        RawBsonDocument source = raw;
+        raw = null;
+        Document full = source.decode(documentCodec);
+        for(Map.Entry<String, Object> entry : full.entrySet()){
+            if(super.containsKey(entry.getKey())) entry.setValue(super.get(entry.getKey()));
+        }
+        super.clear();
+        super.putAll(full);
+    }
+
+    private static Object decode(String key, BsonValue value){
+        return documentCodec.decode(new BsonDocumentReader(new BsonDocument(key, value)), decoderContext).get(key);
+    }
+
+    private Object writeReplace(){
+        materialize();
+        return new Document(this);
+    }
+
+}
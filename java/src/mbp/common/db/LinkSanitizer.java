@@ -0,0 +1,342 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds links in text written to models and blocks, strips or allows them per field. Links are matched with the same
+ * pattern {@link Model#setStringValue(String, String, Boolean)} always used, so blocked links give the same
+ * "!!LINKS NIET TOEGESTAAN!!" output as before.
+ * <p>
+ * Every link contains a dot preceded by two link characters and followed by two lowercase letters. Text is first
+ * scanned once for such a dot, text without one is returned as is. The pattern is only tried anchored at the
+ * positions up to 269 characters before each candidate dot, the furthest a link can start before it, and every
+ * position is tried at most once, so the time is linear in the length of the text.
+ * <p>
+ * Configure an instance and {@link #freeze()} it before sharing it, frozen instances can not be changed and are safe
+ * to use from any thread. {@link #getDefault()} is frozen, use {@link #copy()} to configure a variant of it.
+ * {@link #bulk()} returns a sanitizer for a single thread which reuses its matcher and buffer over many values, for
+ * imports.
+ */
+public class LinkSanitizer {
+
+    public enum Policy {
+        /**
+         * Replace every link by "!!LINKS NIET TOEGESTAAN!!"
+         */
+        BLOCK,
+        /**
+         * Remove links from the text
+         */
+        STRIP,
+        /**
+         * Leave links as they are
+         */
+        ALLOW,
+        /**
+         * Leave links to the allowed domains, replace other links like BLOCK
+         */
+        ALLOW_DOMAINS
+    }
+
+    public static final String REPLACEMENT = "!!LINKS NIET TOEGESTAAN!!";
+
+    private static final Pattern LINK = Pattern.compile("(http(s)?://.)?(www\\.)?[-a-zA-Z0-9@:%._+~#=]{2,256}\\.[a-z]{2,6}\\b([-a-zA-Z0-9@:%_+.~#?&//=]*)");
+
+    /**
+     * The maximum distance between the start of a link and its dot: "https://." + "www." + 256 characters
+     */
+    private static final int MAX_PREFIX = 9 + 4 + 256;
+
+    private static final boolean[] LINK_CHARS = new boolean[128];
+
+    static {
+        for(char c = 'a'; c <= 'z'; c++) LINK_CHARS[c] = true;
+        for(char c = 'A'; c <= 'Z'; c++) LINK_CHARS[c] = true;
+        for(char c = '0'; c <= '9'; c++) LINK_CHARS[c] = true;
+        for(char c : "-@:%._+~#=".toCharArray()) LINK_CHARS[c] = true;
+    }
+
+    private static final LinkSanitizer DEFAULT = new LinkSanitizer()
+            .policy("website", Policy.ALLOW)
+            .policy("email", Policy.ALLOW)
+            .freeze();
+
+    private final Map<String, Policy> policies = new HashMap<>();
+    private final Set<String> allowedDomains = new HashSet<>();
+    private Policy defaultPolicy = Policy.BLOCK;
+    private volatile boolean frozen = false;
+
+    /**
+     * @return The frozen sanitizer models use by default: links are blocked in all fields except website and email
+     */
+    public static LinkSanitizer getDefault(){
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a sanitizer with the settings of this one, to change them without affecting this instance
+     * @return A copy of this sanitizer, which is not frozen
+     */
+    public LinkSanitizer copy(){
+        LinkSanitizer copy = new LinkSanitizer();
+        copy.policies.putAll(policies);
+        copy.allowedDomains.addAll(allowedDomains);
+        copy.defaultPolicy = defaultPolicy;
+        return copy;
+    }
+
+    /**
+     * Sets the policy of a field
+     * @param field     The field name
+     * @param policy    The policy for links in the field
+     * @return          This sanitizer
+     */
+    public LinkSanitizer policy(String field, Policy policy){
+        checkNotFrozen();
+        policies.put(field, policy);
+        return this;
+    }
+
+    /**
+     * Sets the policy of fields without their own policy, BLOCK by default
+     * @param policy    The policy
+     * @return          This sanitizer
+     */
+    public LinkSanitizer defaultPolicy(Policy policy){
+        checkNotFrozen();
+        this.defaultPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Adds domains which ALLOW_DOMAINS fields may link to, subdomains included
+     * @param domains   The domains, like "meubelplan.nl"
+     * @return          This sanitizer
+     */
+    public LinkSanitizer allowDomains(String... domains){
+        checkNotFrozen();
+        for(String domain : Arrays.asList(domains)) allowedDomains.add(domain.toLowerCase());
+        return this;
+    }
+
+    /**
+     * Makes this sanitizer read-only, so it can be shared between threads
+     * @return This sanitizer
+     */
+    public LinkSanitizer freeze(){
+        this.frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen(){
+        return frozen;
+    }
+
+    private void checkNotFrozen(){
+        if(frozen) throw new UnsupportedOperationException("This link sanitizer is shared and can not be changed, configure a copy()");
+    }
+
+    public Policy getPolicy(String field){
+        Policy policy = policies.get(field);
+        return policy != null ? policy : defaultPolicy;
+    }
+
+    /**
+     * Applies the policy of a field to a value
+     * @param field The field name
+     * @param value The value to write to the field
+     * @return      The sanitized value, the same instance when nothing changed
+     */
+    public String sanitize(String field, String value){
+        return sanitize(value, getPolicy(field), null, null);
+    }
+
+    /**
+     * Applies a policy to a value
+     * @param value     The value
+     * @param policy    The policy
+     * @return          The sanitized value, the same instance when nothing changed
+     */
+    public String sanitize(String value, Policy policy){
+        return sanitize(value, policy, null, null);
+    }
+
+    /**
+     * Quick check whether a text can contain a link, a single pass without allocating
+     * @param value The text
+     * @return      False when the text certainly contains no link
+     */
+    public static boolean mayContainLink(CharSequence value){
+        return value != null && nextCandidate(value, 0) >= 0;
+    }
+
+    /**
+     * Returns a sanitizer with the policies of this one for use by a single thread, it reuses its matcher and buffer
+     * for all values
+     * @return A new bulk sanitizer
+     */
+    public Bulk bulk(){
+        return new Bulk();
+    }
+
+    private String sanitize(String value, Policy policy, Matcher matcher, StringBuilder builder){
+        if(value == null || policy == Policy.ALLOW) return value;
+        int candidate = nextCandidate(value, 0);
+        if(candidate < 0) return value;
+
+        if(matcher == null){
+            matcher = LINK.matcher(value);
+        } else {
+            matcher.reset(value);
+        }
+        // \b at the end of the domain looks past the region
+        matcher.useTransparentBounds(true);
+        boolean changed = false;
+        int last = 0;
+        int from = 0;
+        while(candidate >= 0){
+            if(!matchBefore(matcher, value, Math.max(from, candidate - MAX_PREFIX), candidate)){
+                // Positions up to this dot can not start a link, later windows start after it
+                from = candidate + 1;
+                candidate = nextCandidate(value, from);
+                continue;
+            }
+            from = matcher.end();
+            candidate = nextCandidate(value, from);
+            if(policy == Policy.ALLOW_DOMAINS && isAllowed(matcher.group())) continue;
+            if(builder == null) builder = new StringBuilder(value.length());
+            builder.append(value, last, matcher.start());
+            if(policy != Policy.STRIP) builder.append(REPLACEMENT);
+            last = from;
+            changed = true;
+        }
+        if(!changed) return value;
+        builder.append(value, last, value.length());
+        return builder.toString();
+    }
+
+    /**
+     * Tries the pattern anchored at each position of a window, leftmost first. Unlike find, a failed attempt does not
+     * go on over the rest of the text.
+     * @return True when a link starts in the window, the matcher then holds it
+     */
+    private static boolean matchBefore(Matcher matcher, String value, int from, int to){
+        for(int start = from; start <= to; start++){
+            // Every link starts with a link character
+            if(!isLinkChar(value.charAt(start))) continue;
+            matcher.region(start, value.length());
+            if(matcher.lookingAt()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the next dot which can be the dot before the top level domain of a link
+     * @return The index of the dot, or -1 when there is none
+     */
+    private static int nextCandidate(CharSequence value, int from){
+        int length = value.length();
+        for(int i = Math.max(from, 2); i < length - 2; i++){
+            if(value.charAt(i) == '.' && isLower(value.charAt(i + 1)) && isLower(value.charAt(i + 2))
+                    && isLinkChar(value.charAt(i - 1)) && isLinkChar(value.charAt(i - 2))){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLower(char c){
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static boolean isLinkChar(char c){
+        return c < 128 && LINK_CHARS[c];
+    }
+
+    private boolean isAllowed(String link){
+        String host = link.toLowerCase();
+        int scheme = host.indexOf("://");
+        if(scheme >= 0) host = host.substring(scheme + 3);
+        for(int i = 0; i < host.length(); i++){
+            char c = host.charAt(i);
+            if(c == '/' || c == '?' || c == '#' || c == ':'){
+                host = host.substring(0, i);
+                break;
+            }
+        }
+        int at = host.lastIndexOf('@');
+        if(at >= 0) host = host.substring(at + 1);
+        if(host.startsWith("www.")) host = host.substring(4);
+        for(String domain : allowedDomains){
+            if(host.equals(domain) || host.endsWith("." + domain)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sanitizer for a single thread, which reuses one matcher and buffer for all values it checks
+     */
+    public class Bulk {
+
+        private final Matcher matcher = LINK.matcher("");
+        private final StringBuilder builder = new StringBuilder();
+        private long checked = 0;
+        private long changed = 0;
+
+        public String sanitize(String field, String value){
+            return sanitize(value, getPolicy(field));
+        }
+
+        public String sanitize(String value, Policy policy){
+            checked++;
+            builder.setLength(0);
+            String result = LinkSanitizer.this.sanitize(value, policy, matcher, builder);
+            if(result != value) changed++;
+            return result;
+        }
+
+        /**
+         * Sanitizes all top level string fields of a document in place, using the policy of each field
+         * @param document  The document, for example a row of an import
+         * @return          The number of changed fields
+         */
+        public int sanitize(Document document){
+            int count = 0;
+            for(Map.Entry<String, Object> entry : document.entrySet()){
+                if(entry.getValue() instanceof String){
+                    String value = (String) entry.getValue();
+                    String result = sanitize(entry.getKey(), value);
+                    if(result != value){
+                        entry.setValue(result);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return The number of values checked
+         */
+        public long getChecked(){
+            return checked;
+        }
+
+        /**
+         * @return The number of values which contained links and were changed
+         */
+        public long getChanged(){
+            return changed;
+        }
+
+    }
+
+}
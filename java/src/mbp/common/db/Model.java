@@ -18,15 +18,25 @@ public abstract class Model<M extends Model> implements Serializable {
     protected Document document;
     protected String className;
 
+    private transient boolean persisted = false;
+    private transient boolean documentExposed = false;
+    private transient Set<String> dirtyFields;
+    private transient Map<String, Object> handedOut;
+    private transient int decodedSize = 0;
+    private transient ViewProfile viewProfile;
+
     public Model(){
         String className = this.getClass().getSimpleName();
         this.className = className;
+        // Models read from the database get their document after construction
+        if(ModelFactory.claimHydration()) return;
         document = new Document();
         initialize();
     }
 
     public Model(String className){
         this.className = className;
+        if(ModelFactory.claimHydration()) return;
         document = new Document();
         initialize();
     }
@@ -41,12 +51,144 @@ public abstract class Model<M extends Model> implements Serializable {
         return className;
     }
 
+    /**
+     * Returns the backing document. Changes made directly on the document can not be tracked, so a model of which
+     * the document has been handed out is saved with a full replace.
+     * @return The backing document
+     */
     public Document getDocument(){
+        documentExposed = true;
         return document;
     }
 
     public void setDocument(Document document){
         this.document = document;
+        this.persisted = false;
+        this.dirtyFields = null;
+        this.handedOut = null;
+        this.viewProfile = null;
+    }
+
+    /**
+     * Binds a document as it was read from the database, changes made after this are tracked
+     * @param document  The document read from the database
+     */
+    void loaded(Document document){
+        this.document = document;
+        this.persisted = true;
+        this.documentExposed = false;
+        this.dirtyFields = null;
+        this.handedOut = null;
+    }
+
+    /**
+     * @return The encoded size in bytes of the document this model was read from, 0 when not known
+     */
+    public int getDecodedSize(){
+        return decodedSize;
+    }
+
+    void setDecodedSize(int decodedSize){
+        this.decodedSize = decodedSize;
+    }
+
+    /**
+     * @return The profile this model was loaded under, or null when it was not loaded for a view
+     */
+    public ViewProfile getViewProfile(){
+        return viewProfile;
+    }
+
+    /**
+     * Whether this model was loaded under a view profile which misses fields, such models can not be saved
+     * @return True when the document of this model is partial
+     */
+    public boolean isPartial(){
+        return viewProfile != null && viewProfile.isPartial();
+    }
+
+    void setViewProfile(ViewProfile viewProfile){
+        this.viewProfile = viewProfile;
+    }
+
+    /**
+     * Marks the current state as written to the database
+     */
+    void markClean(){
+        this.persisted = true;
+        this.dirtyFields = null;
+        // Containers handed out before the save may still be changed by their holder
+        if(handedOut != null){
+            for(Map.Entry<String, Object> field : handedOut.entrySet()){
+                field.setValue(EntityCache.copyValue(document.get(field.getKey())));
+            }
+        }
+    }
+
+    /**
+     * Whether this model was read from or written to the database, only then changes are tracked
+     * @return True when changed fields can be saved without the rest of the document
+     */
+    public boolean isPersisted(){
+        return persisted;
+    }
+
+    /**
+     * Whether the changes on this model are fully described by {@link #getDirtyFields()}
+     * @return True when the model can be saved with a partial update
+     */
+    public boolean isTrackingChanges(){
+        return persisted && !documentExposed && document != null;
+    }
+
+    /**
+     * Returns the names of the fields which have been set or removed since the model was read or saved, and of the
+     * handed out lists, maps and embedded documents which have been changed since
+     * @return The changed field names
+     */
+    public Set<String> getDirtyFields(){
+        Set<String> dirty = dirtyFields;
+        if(handedOut != null){
+            for(Map.Entry<String, Object> field : handedOut.entrySet()){
+                if(dirty != null && dirty.contains(field.getKey())) continue;
+                if(Objects.equals(document.get(field.getKey()), field.getValue())) continue;
+                if(dirty == dirtyFields) dirty = dirtyFields != null ? new LinkedHashSet<>(dirtyFields) : new LinkedHashSet<>();
+                dirty.add(field.getKey());
+            }
+        }
+        if(dirty == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(dirty);
+    }
+
+    /**
+     * Marks a field as changed, subclasses writing to the document directly should call this
+     * @param name  The name of the changed field
+     */
+    protected void markDirty(String name){
+        if(!persisted || name == null) return;
+        if(dirtyFields == null) dirtyFields = new LinkedHashSet<>();
+        dirtyFields.add(name);
+    }
+
+    /**
+     * Keeps a deep copy of a list, map or embedded document which is handed out, it may be changed in place by the
+     * caller. Reading does not make a field dirty, a value which no longer equals the copy at the next save does.
+     * @param name  The name of the field
+     * @param value The value handed out
+     */
+    private void markHandedOut(String name, Object value){
+        if(!persisted || name == null) return;
+        if(handedOut == null) handedOut = new HashMap<>();
+        if(!handedOut.containsKey(name)) handedOut.put(name, EntityCache.copyValue(value));
+    }
+
+    /**
+     * Whether updateBeforeSave needs the stored version of this model. When false, a model read from the database
+     * is saved without reading it again and updateBeforeSave receives null.
+     * @return True to read the stored model before each save
+     */
+    protected boolean requiresOldModel(){
+        return false;
     }
 
     public void generateId(){
@@ -90,6 +232,7 @@ public abstract class Model<M extends Model> implements Serializable {
     public void setObjectId(ObjectId objectId){
         if(document != null && objectId != null){
             document.append("_id", objectId);
+            markDirty("_id");
         }
     }
 
@@ -116,6 +259,7 @@ public abstract class Model<M extends Model> implements Serializable {
             } else {
                 document.append(name, value);
             }
+            markDirty(name);
             return true;
         } catch (Exception e){
             if(document != null) {
@@ -131,13 +275,22 @@ public abstract class Model<M extends Model> implements Serializable {
 
     public boolean setStringValue(String name, String value, Boolean checkLinks) {
         if(value != null) {
-            if (checkLinks && !name.equals("website") && !name.equals("email")) {
-                value = value.replaceAll("(http(s)?://.)?(www\\.)?[-a-zA-Z0-9@:%._+~#=]{2,256}\\.[a-z]{2,6}\\b([-a-zA-Z0-9@:%_+.~#?&//=]*)", "!!LINKS NIET TOEGESTAAN!!");
+            if (checkLinks) {
+                value = getLinkSanitizer().sanitize(name, value);
             }
             return setValue(name, value);
         } return true;
     }
 
+    /**
+     * Returns the sanitizer which removes links from string values written by setStringValue. By default links are
+     * blocked in all fields except website and email, override to set other policies per field.
+     * @return The link sanitizer of this model
+     */
+    protected LinkSanitizer getLinkSanitizer() {
+        return LinkSanitizer.getDefault();
+    }
+
     public boolean setBooleanValue(String name, Boolean value) {
         return setValue(name, value);
     }
@@ -188,6 +341,7 @@ public abstract class Model<M extends Model> implements Serializable {
         try {
             Object obj = document.get(name);
             if(obj instanceof List){
+                markHandedOut(name, obj);
                 return (List) obj;
             } else {
 //                mLogger.warning("Could not get list value: "+name+" found type is not an instance of List");
@@ -202,6 +356,7 @@ public abstract class Model<M extends Model> implements Serializable {
         try {
             Object map = document.get(name);
             if(map instanceof Map){
+                markHandedOut(name, map);
                 return (Map) map;
             } else {
                 if(map != null) {
@@ -216,7 +371,9 @@ public abstract class Model<M extends Model> implements Serializable {
 
     public Document getEmbeddedDocument(String name) {
         try {
-            return document.get(name, Document.class);
+            Document embedded = document.get(name, Document.class);
+            if(embedded != null) markHandedOut(name, embedded);
+            return embedded;
         } catch (Exception e) {
             mLogger.warning("Could not get embedded document: "+name);
         }
@@ -233,50 +390,35 @@ public abstract class Model<M extends Model> implements Serializable {
         return false;
     }
 
+    /**
+     * Returns an integer value, a double value is rounded. Other types result in null.
+     */
     public Integer getIntegerValue(String name){
-        try {
-            Integer i = document.getInteger(name);
-            if(i != null) return i;
-        } catch (Exception e){
-            mLogger.warning("Could not get integer value: "+name);
-            try {
-                Double d = document.getDouble(name);
-                if (d != null) return (int) Math.round(d);
-            } catch (Exception d) {
-                mLogger.warning("Could not get integer/double value: "+name);
-            }
-        }
+        Object value = getValue(name);
+        if(value instanceof Integer) return (Integer) value;
+        if(value instanceof Double) return (int) Math.round((Double) value);
+        if(value != null) mLogger.warning("Could not get integer/double value: "+name);
         return null;
     }
 
+    /**
+     * Returns a long value, integer and (rounded) double values are converted. Other types result in null.
+     */
     public Long getLongValue(String name){
-        Long l = null;
-        try {
-            l = document.getLong(name);
-            if(l != null) return l;
-        }catch (Exception e){
-            mLogger.warning("Could not get long value: "+name);
-        }
-
+        Object value = getValue(name);
+        if(value instanceof Long) return (Long) value;
         Integer i = getIntegerValue(name);
-        if(i != null) l = i.longValue();
-
-        return l;
+        return i != null ? i.longValue() : null;
     }
 
+    /**
+     * Returns a double value, integer values are converted. Other types result in null.
+     */
     public Double getDoubleValue(String name){
-        Double d = null;
-        try {
-            d = document.getDouble(name);
-            if(d != null) return d;
-        }catch (Exception e){
-            mLogger.warning("Could not get double value: "+name);
-        }
-
+        Object value = getValue(name);
+        if(value instanceof Double) return (Double) value;
         Integer i = getIntegerValue(name);
-        if(i != null) d = i.doubleValue();
-
-        return d;
+        return i != null ? i.doubleValue() : null;
     }
 
     public Date getDateValue(String name){
@@ -324,9 +466,21 @@ public abstract class Model<M extends Model> implements Serializable {
     }
 
     public <T extends Model> T getLink(String name, Class<T> c){
+        return getLink(name, c, null);
+    }
+
+    /**
+     * Loads a linked model
+     * @param name          The name of the field holding the link
+     * @param c             The class of the linked model
+     * @param projection    The fields to load of the linked model, or null to load the whole model
+     * @return              The linked model, or null when there is no link or it could not be loaded
+     */
+    public <T extends Model> T getLink(String name, Class<T> c, Document projection){
         try {
             ObjectId id = (ObjectId) document.get(name);
-            return Database.getInstance().get(id, c);
+            if(id == null) return null;
+            return Database.getInstance().getMany(Collections.singletonList(id), c, projection).get(0);
         } catch (Exception e){
             mLogger.warning("Got exception " + e.getClass().getName() + " while getting link (" + name + ") from " + className + " (" + getDbId() + "): " + e.getMessage());
         }
@@ -334,21 +488,30 @@ public abstract class Model<M extends Model> implements Serializable {
     }
 
     public <T extends Model> List<T> getLinks(String name, Class<T> c){
-        List<T> result = null;
+        return getLinks(name, c, null);
+    }
+
+    /**
+     * Loads all linked models of a link list, in as few queries as possible
+     * @param name          The name of the field holding the link list
+     * @param c             The class of the linked models
+     * @param projection    The fields to load of the linked models, or null to load the whole models
+     * @return              The linked models in link order, with null for links which could not be loaded
+     */
+    public <T extends Model> List<T> getLinks(String name, Class<T> c, Document projection){
         try {
             List<Object> links = (List) document.get(name);
             if(links != null){
                 if(links.size() > 0) {
-                    Database db = Database.getInstance();
-                    result = new ArrayList<>(links.size());
+                    List<ObjectId> ids = new ArrayList<>(links.size());
                     for(Object link : links){
                         if(link instanceof ObjectId){
-                            result.add(db.get((ObjectId) link, c));
+                            ids.add((ObjectId) link);
                         } else {
-                            result.add(db.get(new ObjectId(link.toString()), c));
+                            ids.add(new ObjectId(link.toString()));
                         }
                     }
-                    return result;
+                    return Database.getInstance().getMany(ids, c, projection);
                 }else{
                     return new ArrayList<>();
                 }
@@ -360,17 +523,19 @@ public abstract class Model<M extends Model> implements Serializable {
     }
 
     public <T extends Model> void setLink(String name, T model){
-        if(model != null && model.getDocument() != null) {
+        if(model != null && model.hasDocument()) {
             document.append(name, model.getObjectId());
         } else {
             document.remove(name);
         }
+        markDirty(name);
     }
 
     public <T extends Model> void setLinks(String name, List<T> models){
         if(models != null) {
             List<ObjectId> links = models.parallelStream().map(T::getObjectId).collect(Collectors.toList());
             document.append(name, links);
+            markDirty(name);
         }
     }
 
@@ -413,6 +578,7 @@ public abstract class Model<M extends Model> implements Serializable {
         try {
             if(map.containsKey(key)){
                 map.remove(key);
+                markDirty(mapName);
             }
         } catch (Exception e) {
             mLogger.info("Could not remove entry from map "+mapName);
@@ -450,11 +616,13 @@ public abstract class Model<M extends Model> implements Serializable {
 
     public void setEmbeddedDocument(String name, Document doc) {
         document.put(name, doc);
+        markDirty(name);
     }
 
     public void removeField(String name){
         if(document.get(name) != null) {
             document.remove(name);
+            markDirty(name);
         }
     }
 
@@ -463,7 +631,7 @@ public abstract class Model<M extends Model> implements Serializable {
     }
 
     public void duplicate(Model model, boolean copyId){
-        for(String fieldName : model.getDocument().keySet()) {
+        for(String fieldName : model.document.keySet()) {
             if(fieldName != null && (!fieldName.equals("_id") || copyId)) setValue(fieldName, model.getValue(fieldName));
         }
     }
@@ -487,6 +655,14 @@ public abstract class Model<M extends Model> implements Serializable {
         return null;
     }
 
+    /**
+     * Declares the indexes the queries on this model need, created by Database.ensureIndexes at startup
+     * @return The index definitions, empty by default
+     */
+    public List<IndexDefinition> getIndexDefinitions(){
+        return new ArrayList<>(0);
+    }
+
     protected List<String> getStringList(String string){
         if(string != null && !string.equals("")) {
             return Arrays.asList(string.split(";"));
@@ -523,8 +699,8 @@ public abstract class Model<M extends Model> implements Serializable {
     }
 
     public void updateBeforeSave(M oldModel){
-        if(getDocument() != null && getDocument().containsKey("$$hashKey")) getDocument().remove("$$hashKey");
-        if(getDocument() != null && getDocument().containsKey("changedFields")) getDocument().remove("changedFields");
+        if(document != null && document.containsKey("$$hashKey")) removeField("$$hashKey");
+        if(document != null && document.containsKey("changedFields")) removeField("changedFields");
         if(this.getObjectId() != null) {
             setId(this.getObjectId().toHexString());
         }
@@ -534,7 +710,7 @@ public abstract class Model<M extends Model> implements Serializable {
     }
 
     public void initialize(){
-        if(getDocument() != null) {
+        if(document != null) {
             setCreationDate(new Date());
         }
     }
@@ -0,0 +1,46 @@
+package mbp.common.db;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Decodes query results straight into models, see {@link ModelCodecProvider}. The fields are decoded by the
+ * document codec of the registry, the model is created by {@link ModelFactory#hydrate(Class, Document)}. When the
+ * result is read from a binary reader the encoded size of each document is stored on its model.
+ */
+public class ModelCodec<T extends Model> implements Codec<T> {
+
+    private final Class<T> type;
+    private final Codec<Document> documentCodec;
+
+    public ModelCodec(Class<T> type, Codec<Document> documentCodec){
+        this.type = type;
+        this.documentCodec = documentCodec;
+    }
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        BsonBinaryReader binaryReader = reader instanceof BsonBinaryReader ? (BsonBinaryReader) reader : null;
+        int start = binaryReader != null ? binaryReader.getBsonInput().getPosition() : 0;
+        Document document = documentCodec.decode(reader, decoderContext);
+        T model = ModelFactory.hydrate(type, document);
+        if(binaryReader != null) model.setDecodedSize(binaryReader.getBsonInput().getPosition() - start);
+        return model;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        documentCodec.encode(writer, value.document, encoderContext);
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return type;
+    }
+
+}
@@ -0,0 +1,22 @@
+package mbp.common.db;
+
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Provides a {@link ModelCodec} for every Model subclass, registered on the shared client of {@link Database} so
+ * collections can be read as models: db.getCollection(name, Product.class)
+ */
+public class ModelCodecProvider implements CodecProvider {
+
+    @Override
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        if(Model.class.isAssignableFrom(clazz)){
+            return (Codec<T>) new ModelCodec(clazz, registry.get(Document.class));
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,112 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Creates model instances without reflection. The no-arg constructor of each model class is bound once to a
+ * Supplier through LambdaMetafactory, falling back to a method handle and, for classes it can not access, to
+ * Class.newInstance.
+ * <p>
+ * Models created by {@link #hydrate(Class, Document)} skip the default initialization of {@link Model}: no empty
+ * document is allocated and initialize() is not called, as the document read from the database replaces both.
+ * Constructors and field initializers of subclasses still run.
+ */
+public final class ModelFactory {
+
+    private static final Logger logger = Logger.getLogger(ModelFactory.class.getName());
+
+    private static final ThreadLocal<boolean[]> hydrating = ThreadLocal.withInitial(() -> new boolean[1]);
+
+    private static final ClassValue<Supplier<?>> constructors = new ClassValue<Supplier<?>>() {
+        @Override
+        protected Supplier<?> computeValue(Class<?> type) {
+            return createConstructor(type);
+        }
+    };
+
+    private ModelFactory(){
+    }
+
+    /**
+     * Creates a new, initialized model
+     * @param c The model class
+     * @return  A new instance
+     */
+    public static <T extends Model> T newInstance(Class<T> c){
+        return c.cast(constructors.get(c).get());
+    }
+
+    /**
+     * Creates a model for a document read from the database
+     * @param c         The model class
+     * @param document  The document read
+     * @return          A model bound to the document, changes made after this are tracked
+     */
+    public static <T extends Model> T hydrate(Class<T> c, Document document){
+        boolean[] flag = hydrating.get();
+        flag[0] = true;
+        T model;
+        try {
+            model = c.cast(constructors.get(c).get());
+        } finally {
+            flag[0] = false;
+        }
+        model.loaded(document);
+        return model;
+    }
+
+    /**
+     * Called by the Model constructor: whether the model being constructed is hydrated, in which case it skips its
+     * default initialization. The flag is cleared, so models created by the constructors of the hydrated model are
+     * initialized as usual.
+     */
+    static boolean claimHydration(){
+        boolean[] flag = hydrating.get();
+        if(!flag[0]) return false;
+        flag[0] = false;
+        return true;
+    }
+
+    private static Supplier<?> createConstructor(Class<?> type){
+        MethodHandle constructor;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class));
+        } catch (Exception e) {
+            logger.fine("No accessible constructor on "+type.getName()+", using reflection: "+e.getMessage());
+            return () -> {
+                try {
+                    return type.newInstance();
+                } catch (Exception ex) {
+                    throw new IllegalStateException("Could not create new instance of "+type.getSimpleName(), ex);
+                }
+            };
+        }
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class), constructor, MethodType.methodType(type));
+            return (Supplier<?>) site.getTarget().invoke();
+        } catch (Throwable t) {
+            logger.fine("Could not bind constructor of "+type.getName()+", using a method handle: "+t.getMessage());
+            MethodHandle generic = constructor.asType(MethodType.methodType(Object.class));
+            return () -> {
+                try {
+                    return generic.invokeExact();
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IllegalStateException("Could not create new instance of "+type.getSimpleName(), e);
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package mbp.common.db;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares one field of a model, see {@link ModelFields}
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({})
+public @interface ModelField {
+
+    /**
+     * @return The name of the field in the document
+     */
+    String name();
+
+    /**
+     * @return The type of the field: String, Integer, Long, Double, Boolean, Date, List, Map, Document or ObjectId
+     */
+    Class<?> type();
+
+    /**
+     * @return Whether links are removed from string values, see {@link Model#setStringValue(String, String, Boolean)}
+     */
+    boolean checkLinks() default true;
+
+}
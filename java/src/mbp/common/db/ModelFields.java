@@ -0,0 +1,31 @@
+package mbp.common.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the fields of a model once, the ModelFieldsProcessor generates a class named after the model with a
+ * "Fields" suffix, holding a constant per field name and typed static getters and setters:
+ * <pre>
+ *     &#64;ModelFields({
+ *         &#64;ModelField(name = "price", type = Double.class),
+ *         &#64;ModelField(name = "mainGroup", type = List.class)
+ *     })
+ *     public class Product extends Model&lt;Product&gt; { ... }
+ *
+ *     Double price = ProductFields.getPrice(product);
+ *     ProductFields.setPrice(product, 99.95);
+ *     collection.find(new Document(ProductFields.PRICE, 99.95));
+ * </pre>
+ * The accessors call the getXxxValue and setXxxValue methods of Model, so they behave exactly like the hand written
+ * getters, while a wrong field name or type is a compile error.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface ModelFields {
+
+    ModelField[] value();
+
+}
@@ -0,0 +1,110 @@
+package mbp.common.db;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one operation on one collection
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private final String collection;
+    private final String operation;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram firstDocument = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public OperationMetrics(String collection, String operation){
+        this.collection = collection;
+        this.operation = operation;
+    }
+
+    /**
+     * Records one call
+     * @param nanos     The duration of the call
+     * @param error     Whether the call failed
+     * @param documents The number of documents returned or written
+     * @param bytes     The (estimated) number of bytes decoded
+     */
+    public void record(long nanos, boolean error, long documents, long bytes){
+        latency.record(nanos);
+        if(error) errors.increment();
+        if(documents > 0) this.documents.add(documents);
+        if(bytes > 0) this.bytes.add(bytes);
+    }
+
+    /**
+     * Records the time until the first document of a cursor was available
+     * @param nanos The time since the cursor was opened
+     */
+    public void recordFirstDocument(long nanos){
+        firstDocument.record(nanos);
+    }
+
+    public OperationSnapshot snapshot(){
+        return new OperationSnapshot(collection, operation, getCalls(), getErrors(), getDocuments(), getBytes(),
+                getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getFirstDocumentP50Micros(), getFirstDocumentP99Micros());
+    }
+
+    @Override
+    public String getCollection() {
+        return collection;
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCalls() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getDocuments() {
+        return documents.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return latency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return latency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getP999Micros() {
+        return latency.getPercentile(0.999);
+    }
+
+    @Override
+    public long getFirstDocumentP50Micros() {
+        return firstDocument.getPercentile(0.5);
+    }
+
+    @Override
+    public long getFirstDocumentP99Micros() {
+        return firstDocument.getPercentile(0.99);
+    }
+
+}
@@ -0,0 +1,33 @@
+package mbp.common.db;
+
+/**
+ * JMX view of the metrics of one operation on one collection, registered as
+ * mbp.common.db:type=DatabaseMetrics,collection=...,operation=...
+ */
+public interface OperationMetricsMXBean {
+
+    String getCollection();
+
+    String getOperation();
+
+    long getCalls();
+
+    long getErrors();
+
+    long getDocuments();
+
+    long getBytes();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getFirstDocumentP50Micros();
+
+    long getFirstDocumentP99Micros();
+
+}
@@ -0,0 +1,92 @@
+package mbp.common.db;
+
+/**
+ * Point in time copy of the metrics of one operation on one collection, latencies in microseconds
+ */
+public class OperationSnapshot {
+
+    private final String collection;
+    private final String operation;
+    private final long calls;
+    private final long errors;
+    private final long documents;
+    private final long bytes;
+    private final double meanMicros;
+    private final long p50Micros;
+    private final long p99Micros;
+    private final long p999Micros;
+    private final long firstDocumentP50Micros;
+    private final long firstDocumentP99Micros;
+
+    public OperationSnapshot(String collection, String operation, long calls, long errors, long documents, long bytes,
+                             double meanMicros, long p50Micros, long p99Micros, long p999Micros,
+                             long firstDocumentP50Micros, long firstDocumentP99Micros){
+        this.collection = collection;
+        this.operation = operation;
+        this.calls = calls;
+        this.errors = errors;
+        this.documents = documents;
+        this.bytes = bytes;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.firstDocumentP50Micros = firstDocumentP50Micros;
+        this.firstDocumentP99Micros = firstDocumentP99Micros;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getP999Micros() {
+        return p999Micros;
+    }
+
+    public long getFirstDocumentP50Micros() {
+        return firstDocumentP50Micros;
+    }
+
+    public long getFirstDocumentP99Micros() {
+        return firstDocumentP99Micros;
+    }
+
+    @Override
+    public String toString() {
+        return collection + "." + operation + ": calls=" + calls + ", errors=" + errors + ", docs=" + documents + ", bytes=" + bytes
+                + ", p50=" + p50Micros + "us, p99=" + p99Micros + "us, p999=" + p999Micros + "us";
+    }
+
+}
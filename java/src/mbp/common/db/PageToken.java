@@ -0,0 +1,185 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The position after the last model of a page, see {@link DatabaseResult#page(int, String)}. A token holds the
+ * values of the sort keys and the _id of that model as base64 (url safe) extended JSON, so the values keep their BSON
+ * type, followed by an HMAC-SHA256 of the sort order and the values. Tokens come back from clients, the HMAC ensures
+ * only values written by {@link #after(Document, Model)} end up in the page filter, see
+ * {@link DatabaseConfig#setPageTokenSecret(String)}.
+ * <p>
+ * The next page is selected with a range predicate on the sort keys, for sort a, b and values x, y, id:
+ * <pre>
+ *     {$or: [{a: {$gt: x}}, {a: x, b: {$gt: y}}, {a: x, b: y, _id: {$gt: id}}]}
+ * </pre>
+ * Missing and null values sort first, for them the predicates select the non-null values (ascending) or nothing
+ * (descending). Range operators only match values of the same BSON type, so every sort key should hold a single
+ * type.
+ */
+final class PageToken {
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte[] processKey = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(processKey);
+    }
+
+    private final String sort;
+    private final List<Object> values;
+
+    private PageToken(String sort, List<Object> values){
+        this.sort = sort;
+        this.values = values;
+    }
+
+    /**
+     * Returns the sort order a page is read in: the given sort with _id added as the last key, so the order is total
+     * @param sort  The sort of the result, may be null
+     * @return      The sort ending with _id
+     */
+    static Document seekSort(Document sort){
+        Document seekSort = sort != null ? new Document(sort) : new Document();
+        if(!seekSort.containsKey("_id")) seekSort.append("_id", 1);
+        return seekSort;
+    }
+
+    /**
+     * Creates the token for the position after a model
+     * @param seekSort  The sort order of the page, see {@link #seekSort(Document)}
+     * @param model     The last model of the page
+     * @return          The token
+     */
+    static PageToken after(Document seekSort, Model model){
+        List<Object> values = new ArrayList<>(seekSort.size());
+        for(String key : seekSort.keySet()){
+            values.add(valueOf(model.document, key));
+        }
+        return new PageToken(seekSort.toJson(), values);
+    }
+
+    /**
+     * Reads a token
+     * @param token     The serialized token
+     * @param seekSort  The sort order the token must have been made for
+     * @return          The token
+     * @throws IllegalArgumentException When the token is malformed, was not signed with this key, was made for another
+     *                                  sort order or holds operators
+     */
+    static PageToken parse(String token, Document seekSort){
+        int dot = token != null ? token.indexOf('.') : -1;
+        if(dot < 0) throw new IllegalArgumentException("Malformed page token");
+        byte[] payload;
+        byte[] mac;
+        try {
+            payload = decoder.decode(token.substring(0, dot));
+            mac = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed page token", e);
+        }
+        String sort = seekSort.toJson();
+        if(!MessageDigest.isEqual(mac, sign(sort, payload))){
+            throw new IllegalArgumentException("Page token was not issued for the sort order " + sort);
+        }
+        Document document;
+        try {
+            document = Document.parse(new String(payload, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed page token", e);
+        }
+        Object values = document.get("v");
+        if(!(values instanceof List) || ((List) values).size() != seekSort.size()){
+            throw new IllegalArgumentException("Page token does not match the sort order " + sort);
+        }
+        for(Object value : (List) values){
+            // after() never writes documents or arrays, in the filter they would be operators
+            if(value instanceof Map || value instanceof List) throw new IllegalArgumentException("Page token holds a value which is not comparable");
+        }
+        return new PageToken(sort, (List<Object>) values);
+    }
+
+    /**
+     * Builds the predicate which selects the models after this position
+     * @param seekSort  The sort order of the page
+     * @return          The $or predicate
+     */
+    Document predicate(Document seekSort){
+        List<Document> clauses = new ArrayList<>(seekSort.size());
+        Document equal = new Document();
+        int i = 0;
+        for(Map.Entry<String, Object> key : seekSort.entrySet()){
+            Object value = values.get(i++);
+            boolean descending = key.getValue() instanceof Number && ((Number) key.getValue()).intValue() < 0;
+            Document after = after(key.getKey(), value, descending);
+            if(after != null){
+                Document clause = new Document(equal);
+                clause.putAll(after);
+                clauses.add(clause);
+            }
+            equal.append(key.getKey(), value);
+        }
+        return new Document("$or", clauses);
+    }
+
+    /**
+     * The condition for a value after the given one on a single key, null when no value comes after it
+     */
+    private static Document after(String key, Object value, boolean descending){
+        if(value == null){
+            return descending ? null : new Document(key, new Document("$ne", null));
+        }
+        if(!descending) return new Document(key, new Document("$gt", value));
+        List<Document> lower = new ArrayList<>(2);
+        lower.add(new Document(key, new Document("$lt", value)));
+        lower.add(new Document(key, null));
+        return new Document("$or", lower);
+    }
+
+    private static Object valueOf(Document document, String key){
+        Object value = document;
+        for(String part : key.split("\\.")){
+            if(!(value instanceof Map)) return null;
+            value = ((Map) value).get(part);
+        }
+        // Arrays and embedded documents can not be compared by a range predicate
+        return value instanceof Map || value instanceof List ? null : value;
+    }
+
+    private static byte[] sign(String sort, byte[] payload){
+        String secret = Database.getConfig().getPageTokenSecret();
+        byte[] key = secret != null && !secret.isEmpty() ? secret.getBytes(StandardCharsets.UTF_8) : processKey;
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            mac.update(sort.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign page token", e);
+        }
+    }
+
+    /**
+     * @return The serialized token
+     */
+    @Override
+    public String toString() {
+        byte[] payload = new Document("v", values).toJson().getBytes(StandardCharsets.UTF_8);
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(sort, payload));
+    }
+
+}
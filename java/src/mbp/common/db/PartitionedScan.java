@@ -0,0 +1,189 @@
+package mbp.common.db;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A scan of a collection, optionally filtered, split into _id ranges which are read by separate cursors. See
+ * {@link Database#scan(Class, Document, int)}. The split points are taken from a $sample of the matching ids, or,
+ * when sampling fails, spread evenly between the timestamps of the lowest and highest ObjectId.
+ * <p>
+ * The first range also holds all documents of which the _id is not an ObjectId, so every matching document is in
+ * exactly one partition. Partitions are read with {@link #forEach(Consumer)} on the async workers of
+ * {@link Database#async()}, as a parallel stream, or one by one through {@link #getPartitions()}.
+ */
+public class PartitionedScan<T extends Model> {
+
+    private static final Logger logger = Logger.getLogger(PartitionedScan.class.getName());
+
+    private static final int SAMPLES_PER_PARTITION = 20;
+    private static final int OBJECT_ID_TYPE = 7;
+
+    private final Class<T> type;
+    private final List<Document> ranges;
+    private final List<DatabaseResult<T>> partitions;
+
+    private PartitionedScan(Class<T> type, List<Document> ranges, List<DatabaseResult<T>> partitions){
+        this.type = type;
+        this.ranges = ranges;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Splits the documents of a collection matching a filter into partitions
+     * @param type          The class of the models
+     * @param collection    The collection
+     * @param filter        The filter, or null to scan the whole collection
+     * @param partitions    The number of partitions to aim for, fewer are made when there are too few distinct ids
+     * @return              The scan
+     */
+    static <T extends Model> PartitionedScan<T> create(Class<T> type, MongoCollection<Document> collection, Document filter, int partitions){
+        Document base = filter != null ? filter : new Document();
+        List<ObjectId> splitPoints = partitions > 1 ? splitPoints(collection, base, partitions) : Collections.<ObjectId>emptyList();
+        List<Document> ranges = ranges(splitPoints);
+        List<DatabaseResult<T>> results = new ArrayList<>(ranges.size());
+        for(Document range : ranges){
+            Document partitionFilter = base.isEmpty() ? range : new Document("$and", Arrays.asList(base, range));
+            results.add(new DatabaseResult<>(type, collection, partitionFilter));
+        }
+        return new PartitionedScan<>(type, ranges, results);
+    }
+
+    private static List<ObjectId> splitPoints(MongoCollection<Document> collection, Document filter, int partitions){
+        try {
+            List<ObjectId> splitPoints = sampledSplitPoints(collection, filter, partitions);
+            if(!splitPoints.isEmpty()) return splitPoints;
+        } catch (Exception e) {
+            logger.info("Could not sample split points of "+collection.getNamespace().getCollectionName()+": "+e.getMessage());
+        }
+        return timestampSplitPoints(collection, filter, partitions);
+    }
+
+    private static List<ObjectId> sampledSplitPoints(MongoCollection<Document> collection, Document filter, int partitions){
+        List<Document> pipeline = new ArrayList<>(3);
+        if(!filter.isEmpty()) pipeline.add(new Document("$match", filter));
+        pipeline.add(new Document("$sample", new Document("size", partitions * SAMPLES_PER_PARTITION)));
+        pipeline.add(new Document("$project", new Document("_id", 1)));
+
+        List<ObjectId> samples = new ArrayList<>(partitions * SAMPLES_PER_PARTITION);
+        for(Document sample : collection.aggregate(pipeline)){
+            Object id = sample.get("_id");
+            if(id instanceof ObjectId) samples.add((ObjectId) id);
+        }
+        if(samples.size() < partitions) return Collections.emptyList();
+        Collections.sort(samples);
+        List<ObjectId> splitPoints = new ArrayList<>(partitions - 1);
+        for(int i = 1; i < partitions; i++){
+            ObjectId splitPoint = samples.get(i * samples.size() / partitions);
+            if(splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint)) splitPoints.add(splitPoint);
+        }
+        return splitPoints;
+    }
+
+    private static List<ObjectId> timestampSplitPoints(MongoCollection<Document> collection, Document filter, int partitions){
+        Document idOnly = new Document("_id", 1);
+        Document min = collection.find(filter).projection(idOnly).sort(new Document("_id", 1)).limit(1).first();
+        Document max = collection.find(filter).projection(idOnly).sort(new Document("_id", -1)).limit(1).first();
+        if(min == null || max == null || !(min.get("_id") instanceof ObjectId) || !(max.get("_id") instanceof ObjectId)){
+            return Collections.emptyList();
+        }
+        long first = ((ObjectId) min.get("_id")).getTimestamp() & 0xFFFFFFFFL;
+        long last = ((ObjectId) max.get("_id")).getTimestamp() & 0xFFFFFFFFL;
+        List<ObjectId> splitPoints = new ArrayList<>(partitions - 1);
+        for(int i = 1; i < partitions; i++){
+            long seconds = first + (last - first) * i / partitions;
+            if(seconds <= first) continue;
+            ObjectId splitPoint = new ObjectId(String.format("%08x0000000000000000", seconds));
+            if(splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint)) splitPoints.add(splitPoint);
+        }
+        return splitPoints;
+    }
+
+    /**
+     * Turns sorted split points into _id ranges covering all documents
+     */
+    private static List<Document> ranges(List<ObjectId> splitPoints){
+        if(splitPoints.isEmpty()) return Collections.singletonList(new Document());
+        List<Document> ranges = new ArrayList<>(splitPoints.size() + 1);
+        ranges.add(new Document("$or", Arrays.asList(
+                new Document("_id", new Document("$lt", splitPoints.get(0))),
+                new Document("_id", new Document("$not", new Document("$type", OBJECT_ID_TYPE))))));
+        for(int i = 1; i < splitPoints.size(); i++){
+            ranges.add(new Document("_id", new Document("$gte", splitPoints.get(i - 1)).append("$lt", splitPoints.get(i))));
+        }
+        ranges.add(new Document("_id", new Document("$gte", splitPoints.get(splitPoints.size() - 1))));
+        return ranges;
+    }
+
+    /**
+     * @return A result per partition, each reads its own cursor
+     */
+    public List<DatabaseResult<T>> getPartitions(){
+        return partitions;
+    }
+
+    /**
+     * @return The _id range of each partition, in the order of {@link #getPartitions()}
+     */
+    public List<Document> getRanges(){
+        return ranges;
+    }
+
+    public int size(){
+        return partitions.size();
+    }
+
+    /**
+     * Returns a parallel stream over all partitions, each partition is read by one worker of the common ForkJoin
+     * pool. Close the stream when it may short-circuit.
+     * @return The stream of all models
+     */
+    public Stream<T> parallelStream(){
+        return partitions.parallelStream().flatMap(DatabaseResult::stream);
+    }
+
+    /**
+     * Reads all partitions concurrently on the async workers, calling the action for every model. The action is
+     * called from several threads at once.
+     * @param action    The action, must be thread safe
+     * @return          The number of models read, or -1 when a partition failed
+     */
+    public long forEach(Consumer<? super T> action){
+        List<CompletableFuture<Long>> futures = new ArrayList<>(partitions.size());
+        for(DatabaseResult<T> partition : partitions){
+            futures.add(Database.async().submit(db -> {
+                long[] count = new long[1];
+                partition.forEach(model -> {
+                    if(model == null) return;
+                    action.accept(model);
+                    count[0]++;
+                });
+                return count[0];
+            }));
+        }
+        long total = 0;
+        boolean failed = false;
+        for(CompletableFuture<Long> future : futures){
+            try {
+                total += future.join();
+            } catch (CompletionException e) {
+                failed = true;
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                logger.warning("Partition of scan over "+type.getSimpleName()+" failed: "+cause.getMessage());
+            }
+        }
+        return failed ? -1 : total;
+    }
+
+}
@@ -0,0 +1,71 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes the literal values from filters, so queries which only differ in their values have the same shape:
+ * <pre>
+ *     {supplier: "abc", price: {$gt: 10}, dealers: {$in: ["a", "b"]}}
+ *     {supplier: "?", price: {$gt: "?"}, dealers: {$in: ["?"]}}
+ * </pre>
+ * Field names and operators are kept, nested logical operators ($and, $or, $nor, $elemMatch) are normalized too.
+ */
+public final class QueryShape {
+
+    private static final String VALUE = "?";
+
+    private QueryShape(){
+    }
+
+    /**
+     * Normalizes a filter
+     * @param filter    The filter to normalize
+     * @return          The filter with all literal values replaced by "?", or null when the filter is null
+     */
+    public static Document normalize(Map<String, ?> filter){
+        if(filter == null) return null;
+        Document shape = new Document();
+        for(Map.Entry<String, ?> entry : filter.entrySet()){
+            shape.append(entry.getKey(), normalizeValue(entry.getValue()));
+        }
+        return shape;
+    }
+
+    /**
+     * Describes a query by its normalized filter, sort and projection. Sort and projection are kept as they are, their
+     * values are part of the shape.
+     * @param filter        The filter, or null
+     * @param sort          The sort, or null
+     * @param projection    The projection, or null
+     * @return              A string which is equal for queries of the same shape
+     */
+    public static String describe(Map<String, ?> filter, Document sort, Document projection){
+        StringBuilder builder = new StringBuilder();
+        builder.append(filter != null ? normalize(filter).toJson() : "{}");
+        if(sort != null && !sort.isEmpty()) builder.append(" sort ").append(sort.toJson());
+        if(projection != null && !projection.isEmpty()) builder.append(" projection ").append(projection.toJson());
+        return builder.toString();
+    }
+
+    private static Object normalizeValue(Object value){
+        if(value instanceof Map){
+            return normalize((Map<String, ?>) value);
+        }
+        if(value instanceof List){
+            // Lists of conditions ($and, $or) keep their structure, lists of literals ($in, $all) collapse to one value
+            List<?> list = (List<?>) value;
+            List<Object> shape = new ArrayList<>();
+            for(Object item : list){
+                Object normalized = normalizeValue(item);
+                if(!shape.contains(normalized)) shape.add(normalized);
+            }
+            return shape;
+        }
+        return VALUE;
+    }
+
+}
@@ -0,0 +1,39 @@
+package mbp.common.db;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A page of results read by {@link DatabaseResult#page(int, String)}, with the token to read the page after it
+ */
+public class ResultPage<T extends Model> implements Iterable<T> {
+
+    private final List<T> items;
+    private final String nextToken;
+
+    public ResultPage(List<T> items, String nextToken){
+        this.items = items;
+        this.nextToken = nextToken;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return The token of the next page, or null when this is the last page
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    public boolean hasNext(){
+        return nextToken != null;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return items.iterator();
+    }
+
+}
@@ -0,0 +1,244 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Output rules of a model type, applied while a document is serialized without changing it. A field which is
+ * missing or null is written with its default value, in place of the null or after the other fields, as if the
+ * default had been set on the model. Controllers keep one schema per type, see
+ * {@link mbp.common.controllers.Controller#getSerializationSchema()}:
+ * <pre>
+ *     new SerializationSchema().defaultEmptyList("mainGroup", "group")
+ * </pre>
+ * Defaults are shared between all documents, so they should not be changed after the schema is in use.
+ */
+public class SerializationSchema {
+
+    private final Map<String, Object> defaults = new LinkedHashMap<>();
+
+    /**
+     * Writes a value when the field is missing or null
+     * @param field The field name
+     * @param value The default value
+     * @return      This schema
+     */
+    public SerializationSchema defaultValue(String field, Object value){
+        defaults.put(field, value);
+        return this;
+    }
+
+    /**
+     * Writes an empty list when one of the fields is missing or null
+     * @param fields    The field names
+     * @return          This schema
+     */
+    public SerializationSchema defaultEmptyList(String... fields){
+        for(String field : fields) defaults.put(field, Collections.emptyList());
+        return this;
+    }
+
+    public Map<String, Object> getDefaults(){
+        return Collections.unmodifiableMap(defaults);
+    }
+
+    /**
+     * Returns the document as it is written: the document itself when no default applies, otherwise a read-only
+     * view which adds the defaults
+     * @param document  The document to serialize
+     * @return          The document to encode
+     */
+    public Document apply(Document document){
+        if(document == null) return null;
+        for(String field : defaults.keySet()){
+            if(document.get(field) == null) return new View(document);
+        }
+        return document;
+    }
+
+    /**
+     * Serializes a document with the defaults of this schema, like Document.toJson()
+     * @param document  The document
+     * @return          The JSON
+     */
+    public String toJson(Document document){
+        return apply(document).toJson();
+    }
+
+    /**
+     * A document with the defaults added, reads go to the document it wraps and writes are not supported
+     */
+    private class View extends Document {
+
+        private final Document document;
+
+        private View(Document document){
+            this.document = document;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Object value = document.get(key);
+            return value != null ? value : defaults.get(key);
+        }
+
+        @Override
+        public <T> T get(Object key, Class<T> clazz) {
+            return clazz.cast(get(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return document.containsKey(key) || defaults.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            int size = document.size();
+            for(String field : defaults.keySet()){
+                if(!document.containsKey(field)) size++;
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new ViewIterator();
+                }
+
+                @Override
+                public int size() {
+                    return View.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    Iterator<Map.Entry<String, Object>> entries = new ViewIterator();
+                    return new Iterator<String>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public String next() {
+                            return entries.next().getKey();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return View.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return new LinkedHashMap<>(this).values();
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            throw new UnsupportedOperationException("Serialization views are read-only");
+        }
+
+        @Override
+        public Document append(String key, Object value) {
+            throw new UnsupportedOperationException("Serialization views are read-only");
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> map) {
+            throw new UnsupportedOperationException("Serialization views are read-only");
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw new UnsupportedOperationException("Serialization views are read-only");
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("Serialization views are read-only");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return new LinkedHashMap<>(this).equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return new LinkedHashMap<>(this).hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "Document{" + new LinkedHashMap<>(this) + "}";
+        }
+
+        /**
+         * The fields of the document with nulls replaced by their default, followed by the missing defaults
+         */
+        private class ViewIterator implements Iterator<Map.Entry<String, Object>> {
+
+            private final Iterator<Map.Entry<String, Object>> fields = document.entrySet().iterator();
+            private final Iterator<Map.Entry<String, Object>> missing = defaults.entrySet().iterator();
+            private Map.Entry<String, Object> next;
+
+            @Override
+            public boolean hasNext() {
+                if(next != null) return true;
+                if(fields.hasNext()){
+                    Map.Entry<String, Object> field = fields.next();
+                    Object value = field.getValue() != null ? null : defaults.get(field.getKey());
+                    next = value != null ? new AbstractMap.SimpleImmutableEntry<>(field.getKey(), value) : field;
+                    return true;
+                }
+                while(missing.hasNext()){
+                    Map.Entry<String, Object> field = missing.next();
+                    if(!document.containsKey(field.getKey())){
+                        next = field;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Map.Entry<String, Object> next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                Map.Entry<String, Object> entry = next;
+                next = null;
+                return entry;
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A query which took longer than the slow query threshold, see {@link SlowQueryLog}. Filters are stored normalized,
+ * without their literal values.
+ */
+public class SlowQuery {
+
+    private final Date date = new Date();
+    private final String collection;
+    private final String operation;
+    private final Document filter;
+    private final Document sort;
+    private final Document projection;
+    private final int skip;
+    private final int limit;
+    private final long elapsedMicros;
+    private final String caller;
+    private final String shape;
+    private volatile String plan;
+    private volatile boolean collectionScan = false;
+
+    public SlowQuery(String collection, String operation, Document filter, Document sort, Document projection, int skip, int limit, long elapsedNanos, String caller){
+        this.collection = collection;
+        this.operation = operation;
+        this.filter = QueryShape.normalize(filter);
+        this.sort = sort;
+        this.projection = projection;
+        this.skip = skip;
+        this.limit = limit;
+        this.elapsedMicros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        this.caller = caller;
+        this.shape = collection + "." + operation + " " + QueryShape.describe(filter, sort, projection);
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return The normalized filter
+     */
+    public Document getFilter() {
+        return filter;
+    }
+
+    public Document getSort() {
+        return sort;
+    }
+
+    public Document getProjection() {
+        return projection;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.MICROSECONDS.toMillis(elapsedMicros);
+    }
+
+    /**
+     * @return The class and method which ran the query, preferably a controller
+     */
+    public String getCaller() {
+        return caller;
+    }
+
+    /**
+     * @return The key under which queries of the same shape are aggregated
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * @return A summary of the winning plan, like "IXSCAN supid_1_supplier_1", or null when the query was not explained
+     */
+    public String getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return True when the explained plan scans the whole collection
+     */
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    void setPlan(String plan, boolean collectionScan) {
+        this.plan = plan;
+        this.collectionScan = collectionScan;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(date.getTime()).append(" ").append(getElapsedMillis()).append("ms ").append(shape);
+        if(skip != 0) builder.append(" skip ").append(skip);
+        if(limit != 0) builder.append(" limit ").append(limit);
+        if(plan != null) builder.append(" plan ").append(plan);
+        if(caller != null) builder.append(" from ").append(caller);
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,204 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the most recent queries which took longer than {@link DatabaseConfig#getSlowQueryThreshold()} in a bounded
+ * ring buffer, and totals per query shape so the shapes costing the most time can be listed. The first slow query of
+ * each shape, and after that one per {@link DatabaseConfig#getSlowQueryExplainInterval()}, is explained in the
+ * background so collection scans show up in the plan.
+ */
+public class SlowQueryLog {
+
+    private static final Logger logger = Logger.getLogger(SlowQueryLog.class.getName());
+    private static final int MAX_SHAPES = 1000;
+
+    private static final Object lock = new Object();
+    private static SlowQuery[] buffer = new SlowQuery[0];
+    private static int next = 0;
+    private static int size = 0;
+    private static final ConcurrentHashMap<String, SlowQueryStats> shapes = new ConcurrentHashMap<>();
+
+    private SlowQueryLog(){
+    }
+
+    /**
+     * Whether a query of the given duration should be logged
+     * @param elapsedNanos  The duration of the query
+     * @return              True when the duration is over the threshold
+     */
+    public static boolean isSlow(long elapsedNanos){
+        long threshold = Database.getConfig().getSlowQueryThreshold();
+        return threshold >= 0 && elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(threshold);
+    }
+
+    /**
+     * Logs a slow query
+     * @param collection        The collection queried
+     * @param operation         The database operation, like query or count
+     * @param filter            The filter, or null
+     * @param sort              The sort, or null
+     * @param projection        The projection, or null
+     * @param skip              The number of skipped results
+     * @param limit             The maximum number of results, 0 for no limit
+     * @param elapsedNanos      The duration of the query
+     * @param explainCommand    The command to explain the query with, or null when it can not be explained
+     * @return                  The logged query
+     */
+    public static SlowQuery record(String collection, String operation, Document filter, Document sort, Document projection,
+                                   int skip, int limit, long elapsedNanos, Document explainCommand){
+        SlowQuery query = new SlowQuery(collection, operation, filter, sort, projection, skip, limit, elapsedNanos, findCaller());
+        logger.info("Slow query: "+query);
+
+        synchronized (lock) {
+            int capacity = Database.getConfig().getSlowQueryLogSize();
+            if(buffer.length != capacity){
+                buffer = new SlowQuery[capacity];
+                next = 0;
+                size = 0;
+            }
+            buffer[next] = query;
+            next = (next + 1) % buffer.length;
+            size = Math.min(size + 1, buffer.length);
+        }
+
+        SlowQueryStats stats = shapes.get(query.getShape());
+        if(stats == null){
+            // Shapes are normally few, a flood of distinct shapes means values end up in field names
+            if(shapes.size() >= MAX_SHAPES) return query;
+            stats = shapes.computeIfAbsent(query.getShape(), SlowQueryStats::new);
+        }
+        stats.add(query);
+
+        long interval = Database.getConfig().getSlowQueryExplainInterval();
+        if(explainCommand != null && interval > 0 && stats.claimExplain(interval)){
+            explain(query, stats, explainCommand);
+        }
+        return query;
+    }
+
+    /**
+     * @return The logged slow queries, oldest first
+     */
+    public static List<SlowQuery> getRecent(){
+        synchronized (lock) {
+            List<SlowQuery> queries = new ArrayList<>(size);
+            for(int i = 0; i < size; i++){
+                queries.add(buffer[(next - size + i + buffer.length) % buffer.length]);
+            }
+            return queries;
+        }
+    }
+
+    /**
+     * Returns the query shapes which spent the most time in slow queries
+     * @param limit The maximum number of shapes to return
+     * @return      The shapes, ordered by total time descending
+     */
+    public static List<SlowQueryStats> getWorstShapes(int limit){
+        List<SlowQueryStats> worst = new ArrayList<>(shapes.values());
+        Collections.sort(worst, Comparator.comparingLong(SlowQueryStats::getTotalMillis).reversed());
+        return worst.size() > limit ? new ArrayList<>(worst.subList(0, limit)) : worst;
+    }
+
+    /**
+     * Writes the worst shapes and the recent slow queries as text, for logging or a status page
+     * @return  One line per shape and query
+     */
+    public static String dump(){
+        StringBuilder builder = new StringBuilder();
+        builder.append("Worst query shapes:\n");
+        for(SlowQueryStats stats : getWorstShapes(20)){
+            builder.append(stats.isCollectionScan() ? "  [COLLSCAN] " : "  ").append(stats).append("\n");
+        }
+        builder.append("Recent slow queries:\n");
+        for(SlowQuery query : getRecent()){
+            builder.append("  ").append(query).append("\n");
+        }
+        return builder.toString();
+    }
+
+    public static void clear(){
+        synchronized (lock) {
+            buffer = new SlowQuery[0];
+            next = 0;
+            size = 0;
+        }
+        shapes.clear();
+    }
+
+    /**
+     * Builds the command to explain a find
+     */
+    static Document findCommand(String collection, Document filter, Document sort, Document projection, int skip, int limit){
+        Document command = new Document("find", collection).append("filter", filter != null ? filter : new Document());
+        if(sort != null) command.append("sort", sort);
+        if(projection != null) command.append("projection", projection);
+        if(skip != 0) command.append("skip", skip);
+        if(limit != 0) command.append("limit", Math.abs(limit));
+        return command;
+    }
+
+    /**
+     * Builds the command to explain a count
+     */
+    static Document countCommand(String collection, Document filter){
+        return new Document("count", collection).append("query", filter != null ? filter : new Document());
+    }
+
+    private static void explain(SlowQuery query, SlowQueryStats stats, Document command){
+        Database.async().submit(db -> db.explain(command)).thenAccept(explanation -> {
+            if(explanation == null) return;
+            Document queryPlanner = explanation.get("queryPlanner", Document.class);
+            Document winningPlan = queryPlanner != null ? queryPlanner.get("winningPlan", Document.class) : null;
+            if(winningPlan == null) return;
+            StringBuilder plan = new StringBuilder();
+            describePlan(winningPlan, plan);
+            boolean collectionScan = plan.indexOf("COLLSCAN") >= 0;
+            query.setPlan(plan.toString(), collectionScan);
+            stats.setPlan(plan.toString(), collectionScan);
+            if(collectionScan) logger.warning("Slow query scans the whole collection: "+query);
+        });
+    }
+
+    private static void describePlan(Document stage, StringBuilder plan){
+        if(plan.length() > 0) plan.append(" > ");
+        plan.append(stage.getString("stage"));
+        if(stage.getString("indexName") != null) plan.append(" ").append(stage.getString("indexName"));
+        Object input = stage.get("inputStage");
+        if(input instanceof Document) describePlan((Document) input, plan);
+        Object inputs = stage.get("inputStages");
+        if(inputs instanceof List){
+            for(Object item : (List<?>) inputs){
+                if(item instanceof Document) describePlan((Document) item, plan);
+            }
+        }
+    }
+
+    /**
+     * Finds the code which ran the query: the nearest controller on the stack, otherwise the nearest frame outside
+     * the database layer
+     */
+    private static String findCaller(){
+        StackTraceElement fallback = null;
+        for(StackTraceElement element : new Throwable().getStackTrace()){
+            String className = element.getClassName();
+            if(className.startsWith("mbp.common.db.") || className.startsWith("java.") || className.startsWith("javax.")
+                    || className.startsWith("sun.") || className.startsWith("jdk.") || className.startsWith("com.mongodb.")) continue;
+            if(className.endsWith("Controller") && !className.equals("mbp.common.controllers.Controller")){
+                return className + "." + element.getMethodName();
+            }
+            if(fallback == null) fallback = element;
+        }
+        return fallback != null ? fallback.getClassName() + "." + fallback.getMethodName() : null;
+    }
+
+}
@@ -0,0 +1,95 @@
+package mbp.common.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals of all slow queries of one shape, see {@link SlowQueryLog#getWorstShapes(int)}
+ */
+public class SlowQueryStats {
+
+    private final String shape;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private volatile long maxMicros = 0;
+    private volatile SlowQuery last;
+    private volatile long lastExplained = 0;
+    private volatile String plan;
+    private volatile boolean collectionScan = false;
+
+    public SlowQueryStats(String shape){
+        this.shape = shape;
+    }
+
+    void add(SlowQuery query){
+        count.increment();
+        totalMicros.add(query.getElapsedMicros());
+        if(query.getElapsedMicros() > maxMicros) maxMicros = query.getElapsedMicros();
+        last = query;
+    }
+
+    /**
+     * Claims the next explain of this shape
+     * @param interval  The minimum time between explains in milliseconds
+     * @return          True when the caller should explain the query
+     */
+    synchronized boolean claimExplain(long interval){
+        long now = System.currentTimeMillis();
+        if(lastExplained != 0 && now - lastExplained < interval) return false;
+        lastExplained = now;
+        return true;
+    }
+
+    void setPlan(String plan, boolean collectionScan) {
+        this.plan = plan;
+        this.collectionScan = collectionScan;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.MICROSECONDS.toMillis(totalMicros.sum());
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.MICROSECONDS.toMillis(maxMicros);
+    }
+
+    public long getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : TimeUnit.MICROSECONDS.toMillis(totalMicros.sum() / n);
+    }
+
+    /**
+     * @return The summary of the most recently explained plan of this shape, or null when it was not explained yet
+     */
+    public String getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return True when the most recently explained plan of this shape scans the whole collection
+     */
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    /**
+     * @return The most recent query of this shape, with its caller
+     */
+    public SlowQuery getLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return getTotalMillis() + "ms total, " + getCount() + "x, max " + getMaxMillis() + "ms: " + shape + (plan != null ? " plan " + plan : "");
+    }
+
+}
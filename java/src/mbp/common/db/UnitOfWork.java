@@ -0,0 +1,117 @@
+package mbp.common.db;
+
+import org.bson.types.ObjectId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identity map for the models loaded on one thread between {@link Database#beginUnitOfWork()} and
+ * {@link Database#endUnitOfWork()}, for example during a single request or batch job. Within the unit of work a model
+ * is loaded from the database at most once and every lookup by id returns the same instance.
+ */
+public class UnitOfWork {
+
+    private final Map<String, Map<ObjectId, Model>> entities = new HashMap<>();
+    private int depth = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Returns the loaded instance for an id
+     * @param c         The class of the requested model
+     * @param objectId  The id of the requested model
+     * @return          The loaded instance, or null when it has not been loaded in this unit of work
+     */
+    public <T extends Model> T get(Class<T> c, ObjectId objectId){
+        Map<ObjectId, Model> collection = entities.get(c.getSimpleName());
+        Model model = collection != null ? collection.get(objectId) : null;
+        if(c.isInstance(model)){
+            hits++;
+            return c.cast(model);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Returns the loaded instance for an id without counting a hit or miss
+     * @param c         The class of the requested model
+     * @param objectId  The id of the requested model
+     * @return          The loaded instance, or null when it has not been loaded in this unit of work
+     */
+    public <T extends Model> T peek(Class<T> c, ObjectId objectId){
+        Map<ObjectId, Model> collection = entities.get(c.getSimpleName());
+        Model model = collection != null ? collection.get(objectId) : null;
+        return c.isInstance(model) ? c.cast(model) : null;
+    }
+
+    /**
+     * Adds a loaded or saved model, replacing the instance registered for the same id
+     * @param model The model to add
+     */
+    public void put(Model model){
+        if(model == null || model.getObjectId() == null) return;
+        Map<ObjectId, Model> collection = entities.get(model.getClassName());
+        if(collection == null){
+            collection = new HashMap<>();
+            entities.put(model.getClassName(), collection);
+        }
+        collection.put(model.getObjectId(), model);
+    }
+
+    /**
+     * Removes a single model
+     * @param collection    The collection name of the model
+     * @param objectId      The id of the model
+     */
+    public void evict(String collection, ObjectId objectId){
+        Map<ObjectId, Model> models = entities.get(collection);
+        if(models != null) models.remove(objectId);
+    }
+
+    /**
+     * Removes all models of a collection, used when a write may have changed any of them
+     * @param collection    The collection name
+     */
+    public void evictCollection(String collection){
+        entities.remove(collection);
+    }
+
+    /**
+     * @return The number of lookups answered without a database call
+     */
+    public long getHits(){
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups which had to go to the database
+     */
+    public long getMisses(){
+        return misses;
+    }
+
+    /**
+     * @return The number of models held
+     */
+    public int size(){
+        int size = 0;
+        for(Map<ObjectId, Model> models : entities.values()) size += models.size();
+        return size;
+    }
+
+    int enter(){
+        return ++depth;
+    }
+
+    int leave(){
+        return --depth;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", size=" + size();
+    }
+
+}
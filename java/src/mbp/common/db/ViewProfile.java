@@ -0,0 +1,105 @@
+package mbp.common.db;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A named set of fields a view needs, used as the projection of queries made for that view. Controllers register
+ * their profiles, see {@link mbp.common.controllers.Controller#registerProfile(ViewProfile)}:
+ * <pre>
+ *     ViewProfile.of("listTile", "name", "title", "images", "supplier")
+ *     ViewProfile.full("detail")
+ * </pre>
+ * Models loaded under a profile with fields hold a partial document, {@link Database#save(Model)} refuses them so a
+ * partial document can never overwrite the full one.
+ */
+public class ViewProfile {
+
+    private final String name;
+    private final List<String> fields;
+    private final Document projection;
+
+    private ViewProfile(String name, List<String> fields){
+        this.name = name;
+        this.fields = fields;
+        if(fields != null){
+            projection = new Document();
+            for(String field : fields) projection.append(field, 1);
+        } else {
+            projection = null;
+        }
+    }
+
+    private ViewProfile(String name, List<String> fields, Document projection){
+        this.name = name;
+        this.fields = fields;
+        this.projection = projection;
+    }
+
+    /**
+     * Creates a profile which loads only the given fields, _id is always loaded
+     * @param name      The name of the profile
+     * @param fields    The fields the view needs
+     * @return          The profile
+     */
+    public static ViewProfile of(String name, String... fields){
+        List<String> list = new ArrayList<>(fields.length);
+        for(String field : fields){
+            if(!list.contains(field)) list.add(field);
+        }
+        return new ViewProfile(name, Collections.unmodifiableList(list));
+    }
+
+    /**
+     * Creates a profile which loads the whole document
+     * @param name  The name of the profile
+     * @return      The profile
+     */
+    public static ViewProfile full(String name){
+        return new ViewProfile(name, null);
+    }
+
+    /**
+     * Creates the profile of models loaded with a raw projection, so they are partial like the models of a profile
+     * and can not overwrite the full document when saved
+     * @param projection    The projection, inclusive or exclusive
+     * @return              The partial profile
+     */
+    static ViewProfile projected(Document projection){
+        return new ViewProfile("projection", Collections.unmodifiableList(new ArrayList<>(projection.keySet())), new Document(projection));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The fields of the profile, or null when the whole document is loaded
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return Whether models loaded under this profile miss fields
+     */
+    public boolean isPartial(){
+        return fields != null;
+    }
+
+    /**
+     * @return A new projection document for the fields of this profile, or null when the whole document is loaded
+     */
+    public Document getProjection() {
+        return projection != null ? new Document(projection) : null;
+    }
+
+    @Override
+    public String toString() {
+        return name + (fields != null ? " " + fields : " (full)");
+    }
+
+}
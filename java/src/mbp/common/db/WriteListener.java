@@ -0,0 +1,28 @@
+package mbp.common.db;
+
+/**
+ * Is told about the writes made through {@link Database}, see {@link Database#addWriteListener(WriteListener)}.
+ * Listeners are called on the writing thread after the write succeeded, or was queued in batch mode, so they should
+ * return quickly. Writes from other processes are not seen.
+ */
+public interface WriteListener {
+
+    /**
+     * A model was saved, the model holds the document as it was written
+     * @param model The saved model
+     */
+    void saved(Model model);
+
+    /**
+     * A model was deleted
+     * @param model The deleted model
+     */
+    void deleted(Model model);
+
+    /**
+     * Documents of a collection were updated or deleted by filter, which documents changed is not known
+     * @param collection    The collection name
+     */
+    void changed(String collection);
+
+}